@@ -0,0 +1,234 @@
+package au.edu.wehi.clove;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * Reads a BGZF file (bgzip output) and inflates its blocks on several threads. The compressed
+ * blocks are read one after another, which is cheap as their size is in the header, and a
+ * window of blocks ahead of the reader is inflated in parallel. The data comes out in file order.
+ * Streams read at the same time can share one pool of inflater threads (see newPool()).
+ */
+class BgzfInputStream extends InputStream {
+
+	private static final int HEADER_LENGTH = 12;
+
+	private InputStream in;
+	private ExecutorService pool;
+	private boolean ownPool;
+	private ArrayDeque<Future<byte[]>> pending;
+	private int window;
+	private boolean endOfInput;
+	private byte[] block;
+	private int offset;
+
+	public BgzfInputStream(InputStream in, int threads){
+		this(in, newPool(threads), threads);
+		this.ownPool = true;
+	}
+
+	/*
+	 * Inflates the blocks on a pool of the given number of threads that is shared with other
+	 * streams, and is left running when the stream is closed.
+	 */
+	public BgzfInputStream(InputStream in, ExecutorService pool, int threads){
+		this.in = in;
+		this.pool = pool;
+		this.ownPool = false;
+		this.pending = new ArrayDeque<Future<byte[]>>();
+		//keep all threads busy while the reader consumes a block
+		this.window = 2 * Math.max(1, threads);
+		this.endOfInput = false;
+		this.block = new byte[0];
+		this.offset = 0;
+	}
+
+	/*
+	 * A pool of inflater threads for one or more streams.
+	 */
+	public static ExecutorService newPool(int threads){
+		//daemon threads, so that a failed run is not kept alive by them
+		return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "bgzf-inflater");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/*
+	 * Whether the stream starts like a BGZF block: gzip magic, deflate, an extra field
+	 * and a first subfield "BC". The stream has to support mark() and is reset afterwards.
+	 */
+	public static boolean isBgzf(InputStream in) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH + 4];
+		in.mark(header.length);
+		int n = readFully(in, header, 0, header.length);
+		in.reset();
+		return n == header.length && (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139 && header[2] == 8
+				&& (header[3] & 4) != 0 && header[12] == 'B' && header[13] == 'C';
+	}
+
+	/*
+	 * Whether the stream starts with the gzip magic. The stream has to support mark() and is reset afterwards.
+	 */
+	public static boolean isGzip(InputStream in) throws IOException {
+		byte[] magic = new byte[2];
+		in.mark(magic.length);
+		int n = readFully(in, magic, 0, magic.length);
+		in.reset();
+		return n == magic.length && (magic[0] & 0xFF) == 31 && (magic[1] & 0xFF) == 139;
+	}
+
+	private static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+		int total = 0;
+		while(total < len){
+			int n = in.read(b, off + total, len - total);
+			if(n < 0)
+				break;
+			total += n;
+		}
+		return total;
+	}
+
+	/*
+	 * Reads the next compressed block and queues it for inflation. Returns false at the end of the file.
+	 */
+	private boolean submitNextBlock() throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		int n = readFully(in, header, 0, HEADER_LENGTH);
+		if(n == 0)
+			return false;
+		if(n < HEADER_LENGTH)
+			throw new EOFException("Truncated BGZF block header");
+		if((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || header[2] != 8 || (header[3] & 4) == 0)
+			throw new IOException("Invalid BGZF block header");
+		int extraLength = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+		byte[] extra = new byte[extraLength];
+		if(readFully(in, extra, 0, extraLength) < extraLength)
+			throw new EOFException("Truncated BGZF block header");
+		int blockSize = -1;
+		for(int i = 0; i + 4 <= extraLength; ){
+			int fieldLength = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+			if(extra[i] == 'B' && extra[i + 1] == 'C' && fieldLength == 2)
+				blockSize = ((extra[i + 4] & 0xFF) | (extra[i + 5] & 0xFF) << 8) + 1;
+			i += 4 + fieldLength;
+		}
+		if(blockSize < 0)
+			throw new IOException("Gzip block without BGZF block size");
+		//compressed data, CRC32 and inflated size
+		final byte[] data = new byte[blockSize - HEADER_LENGTH - extraLength];
+		if(data.length < 8 || readFully(in, data, 0, data.length) < data.length)
+			throw new EOFException("Truncated BGZF block");
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return inflate(data);
+			}
+		}));
+		return true;
+	}
+
+	private static byte[] inflate(byte[] data) throws IOException {
+		int footer = data.length - 8;
+		int crc = (data[footer] & 0xFF) | (data[footer + 1] & 0xFF) << 8 | (data[footer + 2] & 0xFF) << 16 | (data[footer + 3] & 0xFF) << 24;
+		int size = (data[footer + 4] & 0xFF) | (data[footer + 5] & 0xFF) << 8 | (data[footer + 6] & 0xFF) << 16 | (data[footer + 7] & 0xFF) << 24;
+		byte[] inflated = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, 0, footer);
+			int n = 0;
+			while(n < size && !inflater.finished()){
+				int m = inflater.inflate(inflated, n, size - n);
+				if(m == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += m;
+			}
+			if(n != size)
+				throw new IOException("Corrupt BGZF block: inflated "+n+" instead of "+size+" bytes");
+		} catch (DataFormatException e){
+			throw new IOException("Corrupt BGZF block", e);
+		} finally {
+			inflater.end();
+		}
+		CRC32 check = new CRC32();
+		check.update(inflated, 0, size);
+		if((int)check.getValue() != crc)
+			throw new IOException("Corrupt BGZF block: CRC mismatch");
+		return inflated;
+	}
+
+	/*
+	 * Moves on to the next non-empty inflated block. Returns false at the end of the file.
+	 */
+	private boolean nextBlock() throws IOException {
+		while(offset == block.length){
+			while(!endOfInput && pending.size() < window){
+				if(!submitNextBlock())
+					endOfInput = true;
+			}
+			if(pending.isEmpty())
+				return false;
+			try {
+				block = pending.poll().get();
+			} catch (InterruptedException e){
+				throw new IOException(e);
+			} catch (ExecutionException e){
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			}
+			offset = 0;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if(!nextBlock())
+			return -1;
+		return block[offset++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0)
+			return 0;
+		if(!nextBlock())
+			return -1;
+		int n = Math.min(len, block.length - offset);
+		System.arraycopy(block, offset, b, off, n);
+		offset += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return block.length - offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(ownPool)
+			pool.shutdownNow();
+		else {
+			for(Future<byte[]> block: pending)
+				block.cancel(false);
+		}
+		pending.clear();
+		in.close();
+	}
+}
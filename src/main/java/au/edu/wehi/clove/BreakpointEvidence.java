@@ -0,0 +1,186 @@
+package au.edu.wehi.clove;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+
+/*
+ * Counts soft-clipped and spanning reads around the breakpoints of all events.
+ * Breakpoints are collected first and then sorted, so each chromosome is read in a single
+ * streaming pass over the merged breakpoint windows instead of one query per breakpoint.
+ */
+class BreakpointEvidence {
+
+	//distance around a breakpoint in which reads are inspected
+	private static final int MARGIN = 5;
+
+	private static class Breakpoint {
+		private Event event;
+		private int position, start, end;
+		private String orientation;
+		private int softclipped, spanning;
+
+		private Breakpoint(Event event, GenomicCoordinate c, String orientation){
+			this.event = event;
+			this.position = c.getPos();
+			this.start = Math.max(1, c.getPos() - MARGIN);
+			this.end = c.getPos() + MARGIN;
+			this.orientation = orientation;
+		}
+	}
+
+	private static final Comparator<Breakpoint> BY_COORDINATE = new Comparator<Breakpoint>() {
+		@Override
+		public int compare(Breakpoint b1, Breakpoint b2) {
+			if(b1.start != b2.start)
+				return Integer.compare(b1.start, b2.start);
+			return Integer.compare(b1.end, b2.end);
+		}
+	};
+
+	private Hashtable<String, ArrayList<Breakpoint>> breakpoints;
+	private ArrayList<Breakpoint[]> eventBreakpoints;
+
+	public BreakpointEvidence(){
+		this.breakpoints = new Hashtable<String, ArrayList<Breakpoint>>();
+		this.eventBreakpoints = new ArrayList<Breakpoint[]>();
+	}
+
+	private static int softclipLength5prime(SAMRecord s){
+		int sc_start = s.getAlignmentStart() - s.getUnclippedStart();
+		return sc_start;
+	}
+	private static int softclipLength3prime(SAMRecord s){
+		int sc_end = s.getUnclippedEnd() - s.getAlignmentEnd();
+		return sc_end;
+	}
+	private static boolean isInteresingSoftclip(SAMRecord s, int start, int end, String orientation){
+		if(orientation.equals("+") && s.getAlignmentEnd() <= end + 2 && softclipLength5prime(s) > 4){
+			return true;
+		}
+		if(orientation.equals("-") && s.getAlignmentStart() >= start -2 && softclipLength3prime(s) > 4) {
+			return true;
+		}
+		return false;
+	}
+	private static boolean isAlignedAcrossBreakpoint(SAMRecord s, int breakpointPosition){
+		if(s.getAlignmentStart() < breakpointPosition-5 && s.getAlignmentEnd() > breakpointPosition+5 && s.getAlignmentStart() - s.getUnclippedStart() < 10 && s.getUnclippedEnd() - s.getAlignmentEnd() < 10)
+			return true;
+		return false;
+	}
+
+	/*
+	 * Orientation of a breakpoint as in Socrates output, derived from the event type.
+	 * Null if the type does not imply one; either soft-clip then counts.
+	 */
+	private static String orientation(EVENT_TYPE type, boolean first){
+		switch(type){
+		case DEL:
+		case ITX1:
+			return (first? "+" : "-");
+		case TAN:
+		case ITX2:
+			return (first? "-" : "+");
+		case INV1:
+		case INVTX1:
+			return "+";
+		case INV2:
+		case INVTX2:
+			return "-";
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * Queues both breakpoints of e; counts are appended to its INFO by resolve().
+	 */
+	public void submit(Event e){
+		Breakpoint[] pair = new Breakpoint[] {
+				new Breakpoint(e, e.getC1(), orientation(e.getType(), true)),
+				new Breakpoint(e, e.getC2(), orientation(e.getType(), false))};
+		add(e.getC1().getChr(), pair[0]);
+		add(e.getC2().getChr(), pair[1]);
+		eventBreakpoints.add(pair);
+	}
+
+	private void add(String chr, Breakpoint b){
+		ArrayList<Breakpoint> chrBreakpoints = breakpoints.get(chr);
+		if(chrBreakpoints == null){
+			chrBreakpoints = new ArrayList<Breakpoint>();
+			breakpoints.put(chr, chrBreakpoints);
+		}
+		chrBreakpoints.add(b);
+	}
+
+	/*
+	 * Streams once through the breakpoint windows of every chromosome and appends
+	 * soft-clipped (BPSC) and spanning (BPSPAN) read counts of both breakpoints to each event.
+	 */
+	public void resolve(SAMFileReader samReader){
+		for(Entry<String, ArrayList<Breakpoint>> entry: breakpoints.entrySet()){
+			int referenceIndex = samReader.getFileHeader().getSequenceIndex(entry.getKey());
+			if(referenceIndex < 0)
+				continue;
+			ArrayList<Breakpoint> sorted = entry.getValue();
+			Collections.sort(sorted, BY_COORDINATE);
+			QueryInterval[] intervals = new QueryInterval[sorted.size()];
+			for(int i = 0; i < sorted.size(); i++)
+				intervals[i] = new QueryInterval(referenceIndex, sorted.get(i).start, sorted.get(i).end);
+			countReads(samReader.queryOverlapping(QueryInterval.optimizeIntervals(intervals)), sorted);
+		}
+		for(Breakpoint[] pair: eventBreakpoints){
+			Event e = pair[0].event;
+			e.setInfo(e.getInfo()+";BPSC="+pair[0].softclipped+","+pair[1].softclipped
+					+";BPSPAN="+pair[0].spanning+","+pair[1].spanning);
+		}
+		breakpoints.clear();
+		eventBreakpoints.clear();
+	}
+
+	/*
+	 * Sweeps the reads (sorted by start) over the breakpoints (sorted by start), keeping only
+	 * the breakpoints a read can still overlap.
+	 */
+	private static void countReads(SAMRecordIterator iter, ArrayList<Breakpoint> sorted){
+		ArrayList<Breakpoint> active = new ArrayList<Breakpoint>();
+		int next = 0;
+		while(iter.hasNext()){
+			SAMRecord s = iter.next();
+			if(s.getReadUnmappedFlag())
+				continue;
+			while(next < sorted.size() && sorted.get(next).start <= s.getAlignmentEnd())
+				active.add(sorted.get(next++));
+			for(Iterator<Breakpoint> activeIter = active.iterator(); activeIter.hasNext();){
+				Breakpoint b = activeIter.next();
+				if(b.end < s.getAlignmentStart()){
+					activeIter.remove();
+				} else if(b.start <= s.getAlignmentEnd()){
+					count(s, b);
+				}
+			}
+		}
+		iter.close();
+	}
+
+	private static void count(SAMRecord s, Breakpoint b){
+		boolean softclipped;
+		if(b.orientation == null)
+			softclipped = isInteresingSoftclip(s, b.start, b.end, "+") || isInteresingSoftclip(s, b.start, b.end, "-");
+		else
+			softclipped = isInteresingSoftclip(s, b.start, b.end, b.orientation);
+		if(softclipped){
+			b.softclipped++;
+		} else if(isAlignedAcrossBreakpoint(s, b.position)){
+			b.spanning++;
+		}
+	}
+}
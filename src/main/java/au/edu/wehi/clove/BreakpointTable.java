@@ -0,0 +1,90 @@
+package au.edu.wehi.clove;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/*
+ * Both breakpoints of every event, packed into one long each and kept in a primitive array
+ * per chromosome: the position in the upper 32 bits, and 2 * event index + side (0 for the
+ * first coordinate) in the lower 32 bits. Sorting an array orders its breakpoints by position
+ * and equal positions in input order, without any per-breakpoint objects.
+ * Coordinates are only looked up again through the events, at the boundaries to the node graph.
+ * The keys only serve the sort: the nodes built from them are objects with their own event lists.
+ */
+class BreakpointTable {
+
+	private static class ContigBreakpoints {
+		private long[] keys = new long[16];
+		private int size;
+
+		private void add(long key){
+			if(size == keys.length)
+				keys = Arrays.copyOf(keys, 2 * size);
+			keys[size++] = key;
+		}
+	}
+
+	private ArrayList<Event> events;
+	private Hashtable<String, ContigBreakpoints> contigs;
+	//chromosomes in order of first appearance
+	private ArrayList<String> chromosomes;
+
+	/*
+	 * Packs and sorts the breakpoints of the events; at most 2^31 - 1 events fit.
+	 */
+	public BreakpointTable(ArrayList<Event> events){
+		this.events = events;
+		this.contigs = new Hashtable<String, ContigBreakpoints>();
+		this.chromosomes = new ArrayList<String>();
+		for(int i = 0; i < events.size(); i++){
+			Event e = events.get(i);
+			add(e.getC1(), 2L * i);
+			add(e.getC2(), 2L * i + 1);
+		}
+		for(ContigBreakpoints contig: contigs.values())
+			Arrays.sort(contig.keys, 0, contig.size);
+	}
+
+	private void add(GenomicCoordinate c, long breakpoint){
+		ContigBreakpoints contig = contigs.get(c.getChr());
+		if(contig == null){
+			contig = new ContigBreakpoints();
+			contigs.put(c.getChr(), contig);
+			chromosomes.add(c.getChr());
+		}
+		contig.add(((long)c.getPos() << 32) | breakpoint);
+	}
+
+	public ArrayList<String> chromosomes(){
+		return chromosomes;
+	}
+
+	public int size(String chr){
+		return contigs.get(chr).size;
+	}
+
+	/*
+	 * The i-th breakpoint of the chromosome in coordinate order.
+	 */
+	public long key(String chr, int i){
+		return contigs.get(chr).keys[i];
+	}
+
+	public static int position(long key){
+		return (int)(key >> 32);
+	}
+
+	public static boolean isFirstCoordinate(long key){
+		return (key & 1) == 0;
+	}
+
+	public Event event(long key){
+		return events.get((int)((key & 0xFFFFFFFFL) >>> 1));
+	}
+
+	public GenomicCoordinate coordinate(long key){
+		Event e = event(key);
+		return (isFirstCoordinate(key)? e.getC1() : e.getC2());
+	}
+}
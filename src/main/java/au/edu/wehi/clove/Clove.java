@@ -15,15 +15,11 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.StringTokenizer;
 import java.util.Map.Entry;
-import java.util.TreeSet;
 
 
 import htsjdk.samtools.util.Tuple;
 
 import htsjdk.samtools.*;
-import htsjdk.samtools.util.Interval;
-import htsjdk.samtools.util.IntervalList;
-import htsjdk.samtools.util.SamLocusIterator;
 
 
 class EventIterator implements Iterator<Event> {
@@ -90,74 +86,14 @@ class EventIterator implements Iterator<Event> {
 }
 
 public class Clove {
-	private static int softclipLength5prime(SAMRecord s){
-		int sc_start = s.getAlignmentStart() - s.getUnclippedStart();
-		return sc_start;
-	}
-	private static int softclipLength3prime(SAMRecord s){
-		int sc_end = s.getUnclippedEnd() - s.getAlignmentEnd();
-		return sc_end;
-	}
-	private static boolean isInteresingSoftclip(SAMRecord s, int start, int end, String orientation){
-		if(orientation.equals("+") && s.getAlignmentEnd() <= end + 2 && softclipLength5prime(s) > 4){
-			return true;
-		} 
-		if(orientation.equals("-") && s.getAlignmentStart() >= start -2 && softclipLength3prime(s) > 4) {
-			return true;
-		}
-//		if(s.getAlignmentStart()-2 <= breakpoint && s.getAlignmentEnd()+2>=breakpoint && (softclipLength3prime(s) > 4 || softclipLength5prime(s) > 4))
-//			return true;
-		return false;
-	}
-	private static boolean isAlignedAcrossBreakpoint(SAMRecord s, int breakpointPosition){
-		if(s.getAlignmentStart() < breakpointPosition-5 && s.getAlignmentEnd() > breakpointPosition+5 && s.getAlignmentStart() - s.getUnclippedStart() < 10 && s.getUnclippedEnd() - s.getAlignmentEnd() < 10)
-			return true;
-		return false;
-	}
-	private static double fetchStuff(
-			String chr, int start, int end, String orientation,  SAMFileReader bamFile) {
-		
-		SAMRecordIterator iter = bamFile.queryOverlapping(chr, start, end);
-		
-		int properAlignment = 0,  softclipped = 0;
-		
-		int breakpointPosition = (start + end)/2;
-		
-		for(SAMRecord s; iter.hasNext();){
-			s = iter.next();
-			if(isInteresingSoftclip(s, start, end, orientation)){
-				softclipped ++;
-			} else if (isAlignedAcrossBreakpoint(s, breakpointPosition)){
-				properAlignment++;
-			}
-		}
-		
-		return (double)softclipped/(softclipped+properAlignment);
-	}
-	
-	private static void addEventToNodeList(Event e, Hashtable<String, TreeSet<GenomicNode>> genomicNodes, boolean useFirstCoordinate){
-		GenomicCoordinate coordinate = (useFirstCoordinate? e.getC1() : e.getC2());
-		TreeSet<GenomicNode> nodeSet;
-		if(! genomicNodes.containsKey(coordinate.getChr())){
-			nodeSet = new TreeSet<GenomicNode>();
-			genomicNodes.put(coordinate.getChr(), nodeSet);
-		} else {
-			nodeSet = genomicNodes.get(coordinate.getChr()) ;
-		}
-		GenomicNode newNode = new GenomicNode(coordinate, e);
-		e.setNode(newNode, useFirstCoordinate);
-		nodeSet.add(newNode);
-
-	}
-	
 	private static String generateNodeLabel(GenomicNode n){
 		return n.getStart().getChr()+"_"+n.getStart().getPos()+"_"+n.getEnd().getPos();
 	}
-	private static void graphVisualisation(String outputFilename, Hashtable<String, TreeSet<GenomicNode>> genomicNodes) throws IOException{
+	private static void graphVisualisation(String outputFilename, Hashtable<String, NodeList> genomicNodes) throws IOException{
 		HashSet<Event> eventsWritten = new HashSet<Event>();
 		FileWriter output = new FileWriter(outputFilename);
 		output.write("digraph g {\n");
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
+		for(Entry<String, NodeList> tableEntry: genomicNodes.entrySet()) {
 			if(!tableEntry.getKey().equals("ecoli"))
 				continue;
 			output.write("{rank=same; ");
@@ -214,7 +150,7 @@ public class Clove {
 	}
 	
 	
-	private static void compareToGoldStandard(String goldFileName, Hashtable<String, TreeSet<GenomicNode>> genomicNodes, int margin, boolean compareStrictly) throws IOException {
+	private static void compareToGoldStandard(String goldFileName, Hashtable<String, NodeList> genomicNodes, int margin, boolean compareStrictly) throws IOException {
 		boolean checkAgain = true;
 		if(oldFns.size() == 0){
 			checkAgain = false;
@@ -402,14 +338,14 @@ public class Clove {
 		gold.close();
 	}
 	
-	private static void reportEventComposition(Hashtable<String, TreeSet<GenomicNode>> genomicNodes) {
+	private static void reportEventComposition(Hashtable<String, NodeList> genomicNodes) {
 		Hashtable<EVENT_TYPE, Integer> eventCounts = new Hashtable<EVENT_TYPE, Integer>();
 		int selfRef = 0;
 		for(EVENT_TYPE t: EVENT_TYPE.values()){
 			eventCounts.put(t, 0);
 		}
 		HashSet<Event> skipEvents = new HashSet<Event>();
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
+		for(Entry<String, NodeList> tableEntry: genomicNodes.entrySet()) {
 			for(GenomicNode n: tableEntry.getValue()){
 				for(Event e: n.getEvents()){
 					if(skipEvents.contains(e))
@@ -431,42 +367,6 @@ public class Clove {
 	
 	
 	
-	//private static double getReadDepth(String str, String chr, int start, int end){
-	private static double getReadDepth(SAMFileReader samReader, String chr, int start, int end){
-		
-		if(start >= end){
-			return -1;
-		}
-		
-		//SAMFileReader  samReader=new  SAMFileReader(new  File(str));
-        String chromId=chr;
-        int chromStart=start;
-        int chromEnd=end;
-        int pos=0;
-        int depth=0;
-        int total=0;
-        int count=0;
-        Interval  interval=new  Interval(chromId,chromStart,chromEnd);
-        IntervalList  iL=new  IntervalList(samReader.getFileHeader());
-        iL.add(interval);
-
-        SamLocusIterator  sli=new  SamLocusIterator(samReader,iL,true);
-
-        for(Iterator<SamLocusIterator.LocusInfo> iter=sli.iterator(); iter.hasNext();){
-            SamLocusIterator.LocusInfo  locusInfo=iter.next();
-            //pos = locusInfo.getPosition();
-            depth = locusInfo.getRecordAndPositions().size();
-            total+=depth;
-            count++;
-            //System.out.println("POS="+pos+" depth:"+depth);
-            }
-        //System.out.println("total: "+total+"\tcount: "+count);
-        sli.close();
-        //samReader.close();
-        
-        return (double)total/count;
-    }
-	
 	public static void createVCFHeader(PrintWriter output) throws IOException{
 		  //file format
         output.write("##fileformat=VCFv4.2\n");
@@ -493,6 +393,9 @@ public class Clove {
         output.write("##INFO=<ID=SVTYPE,Number=1,Type=String,Description=\"Type of structural variant\">\n");
         output.write("##INFO=<ID=SVMETHOD,Number=1,Type=String,Description=\"Type of approach used to detect SV\">\n");
         output.write("##INFO=<ID=ADP,Number=1,Type=Integer,Description=\"Average Read Depth\">\n");
+        output.write("##INFO=<ID=ADPEARLY,Number=0,Type=Flag,Description=\"Read depth check decided early, ADP estimated from part of the interval\">\n");
+        output.write("##INFO=<ID=BPSC,Number=2,Type=Integer,Description=\"Soft-clipped reads at the first and second breakpoint\">\n");
+        output.write("##INFO=<ID=BPSPAN,Number=2,Type=Integer,Description=\"Reads aligned across the first and second breakpoint\">\n");
         output.write("##INFO=<ID=SUPPORT,Number=2,Type=Integer,Description=\"SV support by (i) number of aligners, and (ii) number of calls between all aligners\">\n");
         
         //FILTER
@@ -530,6 +433,9 @@ public class Clove {
 	
 	enum SV_ALGORITHM {SOCRATES, DELLY, DELLY2, CREST, GUSTAF, BEDPE, METASV, GRIDSS, LUMPY};
 	
+	enum RD_MODE {PILEUP, BLOCKS, INDEX, SIDECAR};
+	enum RD_SAMPLING {EVEN, RANDOM};
+	
 	
 	static ArrayList<String> oldFns = new ArrayList<String>();
 	/**
@@ -541,31 +447,49 @@ public class Clove {
 		long startTime = System.nanoTime();
 	
 		if(args.length < 8){
-			System.err.println("Options (all mandatory -- input can be specified more than once):" +
-					"\n\t-i <list of breakpoints> <algorithm (Socrates/Delly/Delly2/Crest/Gustaf/BEDPE/GRIDSS)>" +
-					"\n\t-b <BAM file> \n\t-c <mean coverage> <coverage>" +
+			System.err.println("Options (-i, -b/-cov and -c are mandatory -- input can be specified more than once):" +
+					"\n\t-i <list of breakpoints, may be gzip/bgzip compressed> <algorithm (Socrates/Delly/Delly2/Crest/Gustaf/BEDPE/GRIDSS)>" +
+					"\n\t-b <BAM file> (or -cov <tabix-indexed coverage track>) \n\t-c <mean coverage> <coverage>" +
 					"\n\t-o <output filename> [default: CLOVE.vcf]" +
 					"\n\t-r Do not perform read depth check. This option will lead all deletions and tandem "+
 						"\n\t   duplications to fail, but runs a lot faster. Use to get an idea about complex "+
-						"\n\t   variants only.");
+						"\n\t   variants only." +
+					"\n\t-rd <read depth mode (Pileup/Blocks/Index/Sidecar)> [default: Pileup]" +
+					"\n\t-t <number of threads> [default: 1]" +
+					"\n\t-rs <min length> <number of windows> <window length> <window placement (Even/Random)> <max error>" +
+					"\n\t-rq <chunk length> <confidence>" +
+					"\n\t-bp Annotate breakpoint evidence (soft-clipped and spanning reads)" +
+					"\n\t-ec <event cache directory>" +
+					"\n\t-L <target region (chr, chr:start-end or BED file)> (can be specified more than once)");
 			System.exit(0);
 		}
 		
 		/*parse the options from the command line */
 		int argindex = 0;
-		ArrayList<Tuple<BufferedReader, SV_ALGORITHM>> inputs = new ArrayList<Tuple<BufferedReader,SV_ALGORITHM>>();
+		ArrayList<Tuple<String, SV_ALGORITHM>> inputs = new ArrayList<Tuple<String,SV_ALGORITHM>>();
 		SAMFileReader  samReader = null;
+		File bamFile = null;
+		String coverageTrack = null;
 		double mean = 0;
 		double interval= 0;
 		String goldStandard = null;
 		String outputVCF = "CLOVE.vcf";
 		boolean checkRD = true;
+		RD_MODE readDepthMode = RD_MODE.PILEUP;
+		int threads = 1;
+		int samplingMinLength = 0, samplingWindows = 0, samplingWindowLength = 0;
+		RD_SAMPLING sampling = null;
+		double samplingMaxError = 0;
+		int sequentialChunkLength = 0;
+		double sequentialConfidence = 0;
+		boolean checkBreakpoints = false;
+		String eventCacheDirectory = null;
+		Regions regions = null;
 		while (argindex < args.length){
 			if (args[argindex].equals("-i")){
 				try{
-					BufferedReader input = new BufferedReader(new FileReader(args[argindex + 1]));
 					SV_ALGORITHM algorithm = SV_ALGORITHM.valueOf(args[argindex + 2].toUpperCase());
-					inputs.add(new Tuple<BufferedReader, Clove.SV_ALGORITHM>(input, algorithm));
+					inputs.add(new Tuple<String, Clove.SV_ALGORITHM>(args[argindex + 1], algorithm));
 					argindex += 3;
 				} catch (IllegalArgumentException e){
 					System.err.println("Unable to parse input breakpoints.");
@@ -573,12 +497,16 @@ public class Clove {
 				}
 			} else if (args[argindex].equals("-b")){
 				try {
-					samReader=new  SAMFileReader(new  File(args[argindex + 1]));
+					bamFile = new File(args[argindex + 1]);
+					samReader=new  SAMFileReader(bamFile);
 					argindex += 2;
 				} catch (Exception e){
 					System.err.println("Unable to load bam file.");
 					System.exit(1);
 				}
+			} else if (args[argindex].equals("-cov")){
+				coverageTrack = args[argindex + 1];
+				argindex += 2;
 			} else if(args[argindex].equals("-c")){
 				try{
 					mean = Double.parseDouble(args[argindex + 1]);
@@ -598,6 +526,63 @@ public class Clove {
 			else if (args[argindex].equals("-r")){
 				checkRD = false;
 				argindex ++;
+			} else if (args[argindex].equals("-bp")){
+				checkBreakpoints = true;
+				argindex ++;
+			} else if (args[argindex].equals("-ec")){
+				eventCacheDirectory = args[argindex + 1];
+				argindex += 2;
+			} else if (args[argindex].equals("-L")){
+				try{
+					if(regions == null)
+						regions = new Regions();
+					regions.add(args[argindex + 1]);
+					argindex += 2;
+				} catch (IllegalArgumentException e){
+					System.err.println("Unable to parse target region ("+e.getMessage()+").");
+					System.exit(1);
+				}
+			} else if (args[argindex].equals("-t")){
+				try{
+					threads = Integer.parseInt(args[argindex + 1]);
+					argindex += 2;
+				} catch (IllegalArgumentException e){
+					System.err.println("Unable to parse number of threads.");
+					System.exit(1);
+				}
+			} else if (args[argindex].equals("-rd")){
+				try{
+					readDepthMode = RD_MODE.valueOf(args[argindex + 1].toUpperCase());
+					argindex += 2;
+				} catch (IllegalArgumentException e){
+					System.err.println("Unable to parse read depth mode.");
+					System.exit(1);
+				}
+			} else if (args[argindex].equals("-rs")){
+				try{
+					samplingMinLength = Integer.parseInt(args[argindex + 1]);
+					samplingWindows = Integer.parseInt(args[argindex + 2]);
+					samplingWindowLength = Integer.parseInt(args[argindex + 3]);
+					sampling = RD_SAMPLING.valueOf(args[argindex + 4].toUpperCase());
+					samplingMaxError = Double.parseDouble(args[argindex + 5]);
+					argindex += 6;
+				} catch (IllegalArgumentException e){
+					System.err.println("Unable to parse read depth sampling.");
+					System.exit(1);
+				}
+			} else if (args[argindex].equals("-rq")){
+				try{
+					sequentialChunkLength = Integer.parseInt(args[argindex + 1]);
+					sequentialConfidence = Double.parseDouble(args[argindex + 2]);
+					argindex += 3;
+				} catch (IllegalArgumentException e){
+					System.err.println("Unable to parse sequential read depth test.");
+					System.exit(1);
+				}
+				if(sequentialChunkLength <= 0 || !(sequentialConfidence > 0 && sequentialConfidence < 1)){
+					System.err.println("Usage: -rq <chunk length, at least 1> <confidence, between 0 and 1 (e.g. 0.99)>");
+					System.exit(1);
+				}
 			}
 			
 			else {
@@ -605,6 +590,14 @@ public class Clove {
 				throw new IllegalArgumentException();
 			}
 		}
+		if(checkBreakpoints && bamFile == null){
+			System.err.println("Breakpoint evidence (-bp) needs a BAM file (-b).");
+			System.exit(1);
+		}
+		if(checkRD && bamFile == null && coverageTrack == null){
+			System.err.println("Either a BAM file (-b) or a coverage track (-cov) is needed for the read depth check.");
+			System.exit(1);
+		}
 
 		
 		/*
@@ -612,34 +605,26 @@ public class Clove {
 		 */
 		ArrayList<Event> allEvents = new ArrayList<Event>();
 
-		String line;
 		int count = 0;
 		
-		for(Tuple<BufferedReader, SV_ALGORITHM> input_tuple : inputs){
-			System.out.println("Reading input...");
-			BufferedReader input = input_tuple.a;
-			SV_ALGORITHM algorithm = input_tuple.b;
-			while ((line = input.readLine()) != null){
-				//TODO: make # check algorithm specific?
-				if(line.startsWith("#"))
-					continue;
-				Event e;
-				switch(algorithm){
-				case SOCRATES: 	e = Event.createNewEventFromSocratesOutputLatest(line, count++); 	break;
-				case DELLY: 	e = Event.createNewEventFromDellyOutputLatest(line);break;
-				case DELLY2:	e = Event.createNewEventFromDelly2Output(line);break;
-				case CREST:		e = Event.createNewEventFromCrestOutputLatest(line, count++); 		break;
-				case GUSTAF: 	e = Event.createNewEventFromGustafOutput(line);	  if(e.size()<50) continue; break;
-				case BEDPE: 	e = Event.createNewEventFromBEDPE(line); break;
-				case METASV:	e = Event.createNewEventFromMetaSVOutput(line); break;
-				case GRIDSS:	e = Event.createNewEventFromGRIDSSOutput(line); break;
-				case LUMPY:		e = Event.createNewEventFromLUMPYOutput(line); break;
-				default:		e = null;
-				}
-				allEvents.add(e);
+		//chromosomes compare in the order of the BAM header, if there is one
+		if(samReader != null)
+			ContigDictionary.addSequences(samReader.getFileHeader().getSequenceDictionary());
+		EventParser parser = new EventParser(threads);
+		if(eventCacheDirectory != null){
+			try {
+				parser.setCache(new EventCache(new File(eventCacheDirectory)));
+			} catch (IOException e){
+				System.err.println("Unable to use event cache ("+e.getMessage()+"); parsing all inputs.");
 			}
-			input.close();
 		}
+		if(regions != null){
+			regions.merge();
+			parser.setRegions(regions);
+		}
+		parser.parseAll(inputs, allEvents);
+		parser.close();
+		ContigDictionary.assignIndices();
 		System.out.println("Total events: "+allEvents.size());
 		
 		/*VCF Header*/
@@ -654,13 +639,22 @@ public class Clove {
 		 * Create nodes data structure that combines close events into the same 
 		 * genomic node
 		 */
-		Hashtable<String, TreeSet<GenomicNode>> genomicNodes = new Hashtable<String, TreeSet<GenomicNode>>();
+		Hashtable<String, NodeList> genomicNodes = new Hashtable<String, NodeList>();
 		
-		//parse all events and create new nodes 
-		for (Event e: allEvents){
-			addEventToNodeList(e, genomicNodes, true);
-			addEventToNodeList(e, genomicNodes, false);
+		//sort the breakpoints of all events and create new nodes in coordinate order
+		BreakpointTable breakpoints = new BreakpointTable(allEvents);
+		for(String chr: breakpoints.chromosomes()){
+			NodeList chrNodes = new NodeList();
+			for(int i = 0; i < breakpoints.size(chr); i++){
+				long key = breakpoints.key(chr, i);
+				Event e = breakpoints.event(key);
+				GenomicNode newNode = new GenomicNode(breakpoints.coordinate(key), e);
+				e.setNode(newNode, BreakpointTable.isFirstCoordinate(key));
+				chrNodes.append(newNode);
+			}
+			genomicNodes.put(chr, chrNodes);
 		}
+		breakpoints = null;
 		
 		//establish distance for "close" events according to algorithm
 		int maxDistanceForNodeMerge = 15;
@@ -674,40 +668,13 @@ public class Clove {
 		//static parameter to classify single inversions as FP or TP
 		final boolean classifySimpleInversion = false;
 		
-		//iterate through node sets and merge nodes where necessary
+		//iterate through node lists and merge nodes where necessary
 		//also checks each node for redundant members
 		//TODO: handle redundant members
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
-			int nodesMerged = 0;
-			GenomicNode[] staticList = new GenomicNode[tableEntry.getValue().size()];
-			tableEntry.getValue().toArray(staticList);
-			if(staticList.length == 0)
-				break;
-			GenomicNode lastNode = staticList[0], currentNode = null;
-			for(int i = 1; i < staticList.length; i++){
-				currentNode = staticList[i];
-				if(currentNode.getStart().distanceTo(lastNode.getEnd()) < maxDistanceForNodeMerge){
-//					System.out.println("Merging Node at "+lastNode.getStart()+" with node at "+currentNode.getStart());
-//					for(Event e:lastNode.getEvents()){
-//						System.out.println(e);
-//					}
-//					System.out.println("----");
-//					for(Event e:currentNode.getEvents()){
-//						System.out.println(e);
-//					}
-					lastNode.mergeWithNode(currentNode);	
-					if(!tableEntry.getValue().remove(currentNode))
-						System.out.println("NO CAN DO");
-					nodesMerged++;
-				} else {
-					lastNode.checkForRedundantEvents(maxDistanceForNodeMerge);
-					lastNode = currentNode;
-				}
-			}
-			lastNode.checkForRedundantEvents(maxDistanceForNodeMerge);
-			System.out.println("Nodes merged: "+nodesMerged);
-		}
-		System.out.println("Events merged: "+GenomicNode.global_event_merge_counter);
+		NodeList.mergeNodes(genomicNodes, maxDistanceForNodeMerge, threads);
+		for(Entry<String, NodeList> tableEntry: genomicNodes.entrySet())
+			System.out.println("Nodes merged: "+tableEntry.getValue().nodesMerged());
+		System.out.println("Events merged: "+GenomicNode.global_event_merge_counter.get());
 		
 		//String goldStandard = args[1].substring(0, 22)+"_2.fa";
 		//String goldStandard = "/home/users/allstaff/schroeder/GenotypeBreakpoints/data/ecoli/SV_list_2.txt";
@@ -717,22 +684,65 @@ public class Clove {
 		if(goldStandard != null)
 			compareToGoldStandard(goldStandard, genomicNodes, 150, false);
 		
+		ReadDepthSource readDepthSource = null;
+		if(checkRD && coverageTrack != null){
+			try {
+				readDepthSource = new CoverageTrackReadDepth(coverageTrack);
+			} catch (IOException e){
+				System.err.println("Unable to load coverage track ("+e.getMessage()+").");
+				System.exit(1);
+			}
+		} else if(checkRD){
+			switch(readDepthMode){
+			case SIDECAR:
+				try {
+					readDepthSource = CoverageIndex.openSidecar(bamFile, samReader);
+					break;
+				} catch (IOException e){
+					System.err.println("Unable to use coverage sidecar ("+e.getMessage()+"); building index in memory.");
+				}
+			case INDEX:
+				System.out.println("Building coverage index...");
+				readDepthSource = new CoverageIndex(samReader, genomicNodes.keySet());
+				break;
+			case BLOCKS:
+				readDepthSource = new AlignmentBlockReadDepth(bamFile);
+				break;
+			default:
+				readDepthSource = new PileupReadDepth(bamFile);
+			}
+		}
+		
+		ReadDepthScheduler readDepthScheduler = new ReadDepthScheduler();
+		if(sampling != null)
+			readDepthScheduler.setSampling(samplingMinLength, samplingWindows, samplingWindowLength, sampling == RD_SAMPLING.RANDOM, samplingMaxError);
+		if(sequentialChunkLength > 0)
+			readDepthScheduler.setSequential(sequentialChunkLength, sequentialConfidence);
 		String tempInfo = null;
 		//iterate through node sets again, and genotype events
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
+		for(Entry<String, NodeList> tableEntry: genomicNodes.entrySet()) {
 			System.out.println("Nodes on chr:"+tableEntry.getValue().size());
 			for(GenomicNode currentNode: tableEntry.getValue()){
 				//iterate through all event-event pairing in this node and assess for complex events
+				//only pairs of matching types can form one (see Event.pairedType()), self references none
 				Event e1, e2;
 				HashSet<Event> removeEvents = new HashSet<Event>();
 				HashSet<ComplexEvent> newComplexEvents = new HashSet<ComplexEvent>();
 				ComplexEvent newComplexEvent = null;
+				Hashtable<EVENT_TYPE, ArrayList<Event>> eventsByType = null;
 				for(int i=0; i<currentNode.getEvents().size(); i++){
 					e1 = currentNode.getEvents().get(i);
-					for(int j=0; j<currentNode.getEvents().size(); j++){
-						e2 = currentNode.getEvents().get(j);
-						if(e1 == e2 || removeEvents.contains(e2) || removeEvents.contains(e1) 
-								|| e1.otherNode(currentNode) == currentNode || e2.otherNode(currentNode) == currentNode)
+					EVENT_TYPE pairedType = Event.pairedType(e1.getType());
+					if(pairedType == null || e1.otherNode(currentNode) == currentNode)
+						continue;
+					if(eventsByType == null)
+						eventsByType = currentNode.eventsToOtherNodesByType();
+					ArrayList<Event> candidates = eventsByType.get(pairedType);
+					if(candidates == null)
+						continue;
+					for(int j=0; j<candidates.size(); j++){
+						e2 = candidates.get(j);
+						if(removeEvents.contains(e2) || removeEvents.contains(e1))
 							continue;
 						switch(e1.getType()){
 							//inversions
@@ -764,10 +774,10 @@ public class Clove {
 //										tempInfo.replace(tmpOld, tmpNew);
 //										newComplexEvent.setInfo(tempInfo);
 //									}
-									double readDepth = (checkRD? getReadDepth(samReader, invstart.getChr(), invstart.getPos(), invend.getPos()) : -1);
 									//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+invend.getChr()+"; END="+Integer.toString(invend.getPos());
-									tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invend.getChr()+";END="+Integer.toString(invend.getPos())+";ADP="+readDepth;
+									tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invend.getChr()+";END="+Integer.toString(invend.getPos());
 									newComplexEvent.setInfo(tempInfo);
+									readDepthScheduler.submit(newComplexEvent, invstart, invend);
 																									
 									//writer.write(newComplexEvent.getC1().getChr()+"\t"+invstart+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 									//currentNode?
@@ -804,10 +814,10 @@ public class Clove {
 //												 tempInfo.replace(tmpOld, tmpNew);
 //												 newComplexEvent.setInfo(tempInfo);
 //											 }
-											 double readDepth = (checkRD? getReadDepth(samReader, invstart.getChr(), invstart.getPos(), invend.getPos()) : -1);
 											 //tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+invend.getChr()+"; END="+Integer.toString(invend.getPos());
-											 tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invend.getChr()+";END="+Integer.toString(invend.getPos())+";ADP="+readDepth;
+											 tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invend.getChr()+";END="+Integer.toString(invend.getPos());
 											 newComplexEvent.setInfo(tempInfo);
+											 readDepthScheduler.submit(newComplexEvent, invstart, invend);
 											 //writer.write(newComplexEvent.getC1().getChr()+"\t"+invstart+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 										} else {
 											//System.out.println("INVDUP!"+e1+e2);
@@ -836,11 +846,11 @@ public class Clove {
 //												tempInfo.replace(tmpOld, tmpNew);
 //												newComplexEvent.setInfo(tempInfo);
 //											}
-											double readDepth = (checkRD? getReadDepth(samReader, invstart.getChr(), invstart.getPos(), invend.getPos()) : -1);
 											//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+invend.getChr()+"; END="+Integer.toString(invend.getPos());
 //											tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+invend.getChr()+"; END="+Integer.toString(invend.getPos())+"; ADP="+readDepth;
-											tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invstart.getChr()+";START="+Integer.toString(invstart.getPos())+";END="+Integer.toString(invend.getPos())+";ADP="+readDepth;
+											tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+invstart.getChr()+";START="+Integer.toString(invstart.getPos())+";END="+Integer.toString(invend.getPos());
 											newComplexEvent.setInfo(tempInfo);
+											readDepthScheduler.submit(newComplexEvent, invstart, invend);
 											newComplexEvent.setCoord(insert);
 											//writer.write(newComplexEvent.getC1().getChr()+"\t"+invstart+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 										}
@@ -896,10 +906,10 @@ public class Clove {
 //													tempInfo.replace(tmpOld, tmpNew);
 //													newComplexEvent.setInfo(tempInfo);
 //												}
-												double readDepth = (checkRD? getReadDepth(samReader, transtart.getChr(), transtart.getPos(), tranend.getPos()) : -1);
 												//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+tranend.getChr()+"; END="+Integer.toString(tranend.getPos());
-												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+transtart.getChr()+";START="+Integer.toString(transtart.getPos())+";END="+Integer.toString(tranend.getPos())+";ADP="+readDepth;
+												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+transtart.getChr()+";START="+Integer.toString(transtart.getPos())+";END="+Integer.toString(tranend.getPos());
 												newComplexEvent.setInfo(tempInfo);
+												readDepthScheduler.submit(newComplexEvent, transtart, tranend);
 												newComplexEvent.setCoord(traninsert);
 												//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 											} else {
@@ -935,10 +945,10 @@ public class Clove {
 //													tempInfo.replace(tmpOld, tmpNew);
 //													newComplexEvent.setInfo(tempInfo);
 //												}
-												double readDepth = (checkRD? getReadDepth(samReader, transtart.getChr(), transtart.getPos(), tranend.getPos()) : -1);
 												//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+tranend.getChr()+"; END="+Integer.toString(tranend.getPos());
-												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+transtart.getChr()+";START="+Integer.toString(transtart.getPos())+";END="+Integer.toString(tranend.getPos())+";ADP="+readDepth;
+												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+transtart.getChr()+";START="+Integer.toString(transtart.getPos())+";END="+Integer.toString(tranend.getPos());
 												newComplexEvent.setInfo(tempInfo);
+												readDepthScheduler.submit(newComplexEvent, transtart, tranend);
 												newComplexEvent.setCoord(traninsert);
 												//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 											}
@@ -973,10 +983,10 @@ public class Clove {
 //													tempInfo.replace(tmpOld, tmpNew);
 //													newComplexEvent.setInfo(tempInfo);
 //												}
-												double readDepth = (checkRD? getReadDepth(samReader, dupstart.getChr(), dupstart.getPos(), dupend.getPos()) : -1);
 												//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+dupend.getChr()+"; END="+Integer.toString(dupend.getPos());
-												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+dupstart.getChr()+";START="+Integer.toString(dupstart.getPos())+";END="+Integer.toString(dupend.getPos())+";ADP="+readDepth;
+												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+dupstart.getChr()+";START="+Integer.toString(dupstart.getPos())+";END="+Integer.toString(dupend.getPos());
 												newComplexEvent.setInfo(tempInfo);
+												readDepthScheduler.submit(newComplexEvent, dupstart, dupend);
 												newComplexEvent.setCoord(insert);
 												//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 											} else {
@@ -1006,10 +1016,10 @@ public class Clove {
 //													tempInfo.replace(tmpOld, tmpNew);
 //													newComplexEvent.setInfo(tempInfo);
 //												}
-												double readDepth = (checkRD? getReadDepth(samReader, dupstart.getChr(), dupstart.getPos(), dupend.getPos()) : -1);
 												//tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+dupend.getChr()+"; END="+Integer.toString(dupend.getPos());
-												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+dupstart.getChr()+";START="+Integer.toString(dupstart.getPos())+";END="+Integer.toString(dupend.getPos())+";ADP="+readDepth;
+												tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+dupstart.getChr()+";START="+Integer.toString(dupstart.getPos())+";END="+Integer.toString(dupend.getPos());
 												newComplexEvent.setInfo(tempInfo);
+												readDepthScheduler.submit(newComplexEvent, dupstart, dupend);
 												newComplexEvent.setCoord(insert);
 												//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 											}
@@ -1063,9 +1073,9 @@ public class Clove {
 //											tempInfo.replace(tmpOld, tmpNew);
 //											newComplexEvent.setInfo(tempInfo);
 //										}
-										double readDepth = (checkRD? getReadDepth(samReader, eventStart.getChr(), eventStart.getPos(), eventEnd.getPos()) : -1);
-										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+eventStart.getChr()+"; START="+Integer.toString(eventStart.getPos())+"; END="+Integer.toString(eventEnd.getPos())+";ADP="+readDepth;
+										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+"; CHR2="+eventStart.getChr()+"; START="+Integer.toString(eventStart.getPos())+"; END="+Integer.toString(eventEnd.getPos());
 										newComplexEvent.setInfo(tempInfo);
+										readDepthScheduler.submit(newComplexEvent, eventStart, eventEnd);
 										newComplexEvent.setCoord(eventInsert);
 										//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 									} else {
@@ -1091,9 +1101,9 @@ public class Clove {
 //											tempInfo.replace(tmpOld, tmpNew);
 //											newComplexEvent.setInfo(tempInfo);
 //										}
-										double readDepth = (checkRD? getReadDepth(samReader, eventStart.getChr(), eventStart.getPos(), eventEnd.getPos()) : -1);
-										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos())+";ADP="+readDepth;
+										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos());
 										newComplexEvent.setInfo(tempInfo);
+										readDepthScheduler.submit(newComplexEvent, eventStart, eventEnd);
 										newComplexEvent.setCoord(eventInsert);
 										//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 									}
@@ -1134,9 +1144,9 @@ public class Clove {
 //											tempInfo.replace(tmpOld, tmpNew);
 //											newComplexEvent.setInfo(tempInfo);
 //										}
-										double readDepth = (checkRD? getReadDepth(samReader, eventStart.getChr(), eventStart.getPos(), eventEnd.getPos()) : -1);
-										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos())+";ADP="+readDepth;
+										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos());
 										newComplexEvent.setInfo(tempInfo);
+										readDepthScheduler.submit(newComplexEvent, eventStart, eventEnd);
 										newComplexEvent.setCoord(eventInsert);
 										//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 									} else {
@@ -1162,9 +1172,9 @@ public class Clove {
 //											tempInfo.replace(tmpOld, tmpNew);
 //											newComplexEvent.setInfo(tempInfo);
 //										}
-										double readDepth = (checkRD? getReadDepth(samReader, eventStart.getChr(), eventStart.getPos(), eventEnd.getPos()) : -1);
-										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos())+";ADP="+readDepth;
+										tempInfo="SVTYPE="+newComplexEvent.getAlt().substring(1, 4)+";CHR2="+eventStart.getChr()+";START="+Integer.toString(eventStart.getPos())+";END="+Integer.toString(eventEnd.getPos());
 										newComplexEvent.setInfo(tempInfo);
+										readDepthScheduler.submit(newComplexEvent, eventStart, eventEnd);
 										newComplexEvent.setCoord(eventInsert);
 										//writer.write(newComplexEvent.getC1().getChr()+"\t"+newComplexEvent.getC1().getPos()+"\t"+newComplexEvent.getId()+"\t"+newComplexEvent.getRef()+"\t"+newComplexEvent.getAlt()+"\t"+newComplexEvent.getQual()+"\t"+newComplexEvent.getFilter()+"\t"+newComplexEvent.getInfo()+"\n");
 									}
@@ -1190,11 +1200,11 @@ public class Clove {
 				//all event pairings have been investigated 
 				//-> clean up some stuff by removing events and adding the new complex ones.
 				for(Event e: removeEvents){
-					e.getNode(true).getEvents().remove(e);
-					e.getNode(false).getEvents().remove(e);
+					e.getNode(true).removeEvent(e);
+					e.getNode(false).removeEvent(e);
 				}
 				for(Event e: newComplexEvents){
-					e.getNode(true).getEvents().add(e);
+					e.getNode(true).addEvent(e);
 				}
 			}
 		}
@@ -1202,7 +1212,7 @@ public class Clove {
 		//while we're at it: let's run through the nodes again!
 		//this time for output
 		int totalEvents = 0;
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
+		for(Entry<String, NodeList> tableEntry: genomicNodes.entrySet()) {
 			//System.out.println("Working on Entry: "+tableEntry.toString());
 			for(GenomicNode currentNode: tableEntry.getValue()){
 				if(currentNode.getEvents().size() > 1){
@@ -1240,31 +1250,18 @@ public class Clove {
 						case DEL:
 							//check for deletion
 							//double readDepth = meanReadDepth(reader, e.getC1().getPos()+1, e.getC2().getPos()-1);
-							double readDepth = (checkRD? getReadDepth(samReader, e.getC1().getChr(), e.getC1().getPos()+1, e.getC2().getPos()-1) : -1);
+							//fails unless read depth is at most mean-interval
+							readDepthScheduler.submit(e, e.getC1().getChr(), e.getC1().getPos()+1, e.getC2().getPos()-1, Double.NEGATIVE_INFINITY, mean-interval);
 							skipEvents.add(e);
-							if(readDepth < 0 || readDepth > mean-interval){
-								//deleteEvents.add(e);
-								e.setFailFilter(); 
-							} else {
-								//System.out.print("read depth for event: "+readDepth+"\t");
-							}
 							e.setAlt("<DEL>");
-							e.setInfo(e.getInfo()+";ADP="+readDepth );
 							break;
 						case TAN:
 							//double readDepth = meanReadDepth(reader, e.getC1().getPos()+1, e.getC2().getPos()-1);
-							readDepth = (checkRD? getReadDepth(samReader, e.getC1().getChr(), e.getC1().getPos(), e.getC2().getPos()) : -1);
+							//fails unless read depth is at least mean+interval
+							readDepthScheduler.submit(e, e.getC1().getChr(), e.getC1().getPos(), e.getC2().getPos(), mean+interval, Double.POSITIVE_INFINITY);
 							skipEvents.add(e);
 //							//double flank = (meanReadDepth(reader, e.getC1().getPos()-200, e.getC1().getPos()) + meanReadDepth(reader, e.getC2().getPos(), e.getC2().getPos()+200))/2;
-							if( readDepth < 0 || readDepth < mean+interval){
-								//System.out.println("\t\t\t\t\t\tNot proper duplication!!");
-								//deleteEvents.add(e);
-								e.setFailFilter();
-							} else {
-								//System.out.print("read depth for event: "+readDepth+"\t");
-							}
 							e.setAlt("<TAN>");
-							e.setInfo(e.getInfo()+";ADP="+readDepth );
 							break;
 						case COMPLEX_DUPLICATION:
 						case COMPLEX_INVERTED_DUPLICATION:
@@ -1299,18 +1296,35 @@ public class Clove {
 						skipEvents.add(e);
 						//System.out.println("Self reference: "+e);
 					} else {
-						e.otherNode(currentNode).getEvents().remove(e);
+						e.otherNode(currentNode).removeEvent(e);
 					}
 				}
-				currentNode.getEvents().addAll(newEvents);
+				currentNode.addEvents(newEvents);
 				for(Event e: deleteEvents){
-					e.getNode(true).getEvents().remove(e);
-					e.getNode(false).getEvents().remove(e);
+					e.getNode(true).removeEvent(e);
+					e.getNode(false).removeEvent(e);
 				}
 			}
 		}
 		//System.out.println("Total events: "+totalEvents);
 		
+		//all read depth requests are known now: answer them in one sweep
+		readDepthScheduler.resolve(readDepthSource, threads);
+		
+		if(checkBreakpoints){
+			BreakpointEvidence breakpointEvidence = new BreakpointEvidence();
+			HashSet<Event> submittedEvents = new HashSet<Event>();
+			for(NodeList nodeList: genomicNodes.values()){
+				for(GenomicNode node: nodeList){
+					for(Event e: node.getEvents()){
+						if(submittedEvents.add(e))
+							breakpointEvidence.submit(e);
+					}
+				}
+			}
+			breakpointEvidence.resolve(samReader);
+		}
+		
 		//compareToGoldStandard(goldStandard, genomicNodes, 150, true);
 		if(goldStandard != null)
 			compareToGoldStandard(goldStandard, genomicNodes, 150, false);
@@ -1321,8 +1335,8 @@ public class Clove {
 		//reportEventComposition(genomicNodes);
 		/*VCF Output*/
 		HashSet<Event> skipEvents = new HashSet<Event>();
-		for(Entry<String, TreeSet<GenomicNode>> tableEntry: genomicNodes.entrySet()) {
-			for(GenomicNode currentNode: tableEntry.getValue()){
+		for(String chr: ContigDictionary.inReferenceOrder(genomicNodes.keySet())) {
+			for(GenomicNode currentNode: genomicNodes.get(chr)){
 				for(Event e: currentNode.getEvents()){
 					if(skipEvents.contains(e)){
 						continue;
@@ -1339,8 +1353,11 @@ public class Clove {
 			}
 		}
 		
-		writer.close();		
-		samReader.close();	
+		writer.close();
+		if(readDepthSource != null)
+			readDepthSource.close();
+		if(samReader != null)
+			samReader.close();	
 		//End Time
 		long endTime = System.nanoTime();
 		System.out.println("Took "+(endTime - startTime)/1000000000 + " seconds"); 
@@ -0,0 +1,103 @@
+package au.edu.wehi.clove;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/*
+ * Interned contigs, so coordinates compare chromosomes by reference and by an int index.
+ * The index follows the reference order: contigs of the BAM sequence dictionary come first,
+ * in dictionary order, all others after them ordered by name. Until assignIndices() has run,
+ * contigs outside the dictionary have no index yet and compare by name, which gives the same order.
+ */
+class ContigDictionary {
+
+	static class Contig {
+		private final String name;
+		private int index;
+
+		private Contig(String name){
+			this.name = name;
+			this.index = -1;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private static final ConcurrentHashMap<String, Contig> contigs = new ConcurrentHashMap<String, Contig>();
+	private static int indexed = 0;
+
+	public static final Comparator<String> BY_REFERENCE_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String chr1, String chr2) {
+			return ContigDictionary.compare(get(chr1), get(chr2));
+		}
+	};
+
+	/*
+	 * The contig of the given name, created on first use. Safe to call from parsing threads.
+	 */
+	public static Contig get(String name){
+		Contig contig = contigs.get(name);
+		if(contig == null){
+			Contig newContig = new Contig(name);
+			contig = contigs.putIfAbsent(name, newContig);
+			if(contig == null)
+				contig = newContig;
+		}
+		return contig;
+	}
+
+	/*
+	 * Indexes the contigs of the BAM header in dictionary order. Has to run before any coordinates are compared.
+	 */
+	public static synchronized void addSequences(SAMSequenceDictionary dictionary){
+		for(SAMSequenceRecord sequence: dictionary.getSequences()){
+			Contig contig = get(sequence.getSequenceName());
+			if(contig.index < 0)
+				contig.index = indexed++;
+		}
+	}
+
+	/*
+	 * Indexes all contigs seen so far that are not in the dictionary, ordered by name.
+	 */
+	public static synchronized void assignIndices(){
+		ArrayList<String> names = new ArrayList<String>();
+		for(Contig contig: contigs.values()){
+			if(contig.index < 0)
+				names.add(contig.name);
+		}
+		Collections.sort(names);
+		for(String name: names)
+			contigs.get(name).index = indexed++;
+	}
+
+	public static int compare(Contig c1, Contig c2){
+		if(c1 == c2)
+			return 0;
+		if(c1.index >= 0 && c2.index >= 0)
+			return Integer.compare(c1.index, c2.index);
+		if(c1.index >= 0)
+			return -1;
+		if(c2.index >= 0)
+			return 1;
+		return c1.name.compareTo(c2.name);
+	}
+
+	/*
+	 * The chromosome names sorted in reference order.
+	 */
+	public static ArrayList<String> inReferenceOrder(Collection<String> chromosomes){
+		ArrayList<String> sorted = new ArrayList<String>(chromosomes);
+		Collections.sort(sorted, BY_REFERENCE_ORDER);
+		return sorted;
+	}
+}
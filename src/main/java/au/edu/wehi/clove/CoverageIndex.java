@@ -0,0 +1,357 @@
+package au.edu.wehi.clove;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Hashtable;
+
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/*
+ * Per-chromosome cumulative coverage built in a single pass over the BAM file.
+ * Any read depth query is then answered from two lookups of the prefix sum.
+ *
+ * The prefix sum P(x) (total depth of positions 1..x) is stored as a long every
+ * 2^BLOCK_SHIFT bases plus an int offset for each base relative to its block,
+ * which keeps the index at 4 bytes per base without overflowing on deep data.
+ * The same layout is used on the heap and in the memory-mapped sidecar file.
+ */
+class CoverageIndex implements ReadDepthSource {
+
+	static final int BLOCK_SHIFT = 12;
+	//a single mapping is limited to 2GB, so offsets are accessed in segments
+	private static final int SEGMENT_SHIFT = 28;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	static final String SIDECAR_SUFFIX = ".clovecov";
+	private static final String SIDECAR_MAGIC = "CLOVECOV";
+	private static final int SIDECAR_VERSION = 1;
+
+	private static class ContigCoverage {
+		private int length;
+		private LongBuffer blocks;
+		private IntBuffer[] offsets;
+
+		private ContigCoverage(int length, LongBuffer blocks, IntBuffer[] offsets){
+			this.length = length;
+			this.blocks = blocks;
+			this.offsets = offsets;
+		}
+
+		private long prefixSum(int pos){
+			return blocks.get(pos >> BLOCK_SHIFT) + offsets[pos >>> SEGMENT_SHIFT].get(pos & SEGMENT_MASK);
+		}
+	}
+
+	private Hashtable<String, ContigCoverage> contigs;
+
+	private CoverageIndex(){
+		this.contigs = new Hashtable<String, ContigCoverage>();
+	}
+
+	/*
+	 * Builds the index on the heap, for the given chromosomes only.
+	 */
+	public CoverageIndex(SAMFileReader samReader, Collection<String> chromosomes){
+		this();
+		for(String chr: chromosomes){
+			SAMSequenceRecord sequence = samReader.getFileHeader().getSequence(chr);
+			if(sequence == null){
+				System.err.println("Chromosome "+chr+" not found in BAM header; no coverage indexed.");
+				continue;
+			}
+			int length = sequence.getSequenceLength();
+			int[] coverage = new int[length + 2];
+			long[] blocks = new long[numberOfBlocks(length)];
+			countCoverage(samReader, chr, coverage, blocks, length);
+			contigs.put(chr, new ContigCoverage(length, LongBuffer.wrap(blocks), segments(IntBuffer.wrap(coverage, 0, length + 1).slice(), length + 1)));
+		}
+	}
+
+	/*
+	 * Memory-maps the coverage sidecar of the given BAM file. The sidecar is (re)built from
+	 * the whole BAM file first if it does not exist or belongs to a different version of the BAM.
+	 */
+	public static CoverageIndex openSidecar(File bamFile, SAMFileReader samReader) throws IOException {
+		File sidecar = new File(bamFile.getPath() + SIDECAR_SUFFIX);
+		long headerHash = headerHash(samReader.getFileHeader());
+		if(!sidecar.exists() || !sidecarMatches(sidecar, bamFile, headerHash)){
+			System.out.println("Writing coverage sidecar "+sidecar+"...");
+			writeSidecar(sidecar, bamFile, headerHash, samReader);
+		} else {
+			System.out.println("Using coverage sidecar "+sidecar);
+		}
+		return mapSidecar(sidecar);
+	}
+
+	/*
+	 * Mirrors the default filters of SamLocusIterator, so that all engines count the same reads.
+	 */
+	static boolean countsTowardsDepth(SAMRecord s){
+		return !s.getReadUnmappedFlag() && !s.getNotPrimaryAlignmentFlag() && !s.getDuplicateReadFlag();
+	}
+
+	/*
+	 * Adds +1/-1 at the edges of each aligned block of the read to the difference array,
+	 * clipped to [first, last]. Index i of the array corresponds to position first+i-1.
+	 */
+	static void addAlignmentBlocks(SAMRecord s, int[] coverage, int first, int last){
+		if(!countsTowardsDepth(s))
+			return;
+		for(AlignmentBlock block: s.getAlignmentBlocks()){
+			int blockStart = Math.max(block.getReferenceStart(), first);
+			int blockEnd = Math.min(block.getReferenceStart() + block.getLength() - 1, last);
+			if(blockStart > blockEnd)
+				continue;
+			coverage[blockStart - first + 1]++;
+			coverage[blockEnd - first + 2]--;
+		}
+	}
+
+	private static int numberOfBlocks(int length){
+		return (length >> BLOCK_SHIFT) + 1;
+	}
+
+	/*
+	 * Streams all reads of a chromosome and leaves the prefix sum offsets in coverage.
+	 */
+	private static void countCoverage(SAMFileReader samReader, String chr, int[] coverage, long[] blocks, int length){
+		SAMRecordIterator iter = samReader.query(chr, 0, 0, false);
+		while(iter.hasNext()){
+			addAlignmentBlocks(iter.next(), coverage, 1, length);
+		}
+		iter.close();
+		toPrefixOffsets(coverage, blocks, length);
+	}
+
+	/*
+	 * Turns the difference array into per-base offsets of the prefix sum, in place.
+	 */
+	private static void toPrefixOffsets(int[] coverage, long[] blocks, int length){
+		long prefix = 0;
+		int depth = 0;
+		for(int pos = 0; pos <= length; pos++){
+			depth += coverage[pos];
+			prefix += depth;
+			if((pos & ((1 << BLOCK_SHIFT) - 1)) == 0)
+				blocks[pos >> BLOCK_SHIFT] = prefix;
+			coverage[pos] = (int)(prefix - blocks[pos >> BLOCK_SHIFT]);
+		}
+	}
+
+	private static IntBuffer[] segments(IntBuffer offsets, int size){
+		IntBuffer[] segments = new IntBuffer[(size >>> SEGMENT_SHIFT) + 1];
+		for(int i = 0; i < segments.length; i++){
+			int from = i << SEGMENT_SHIFT;
+			offsets.limit(Math.min(size, from + SEGMENT_MASK + 1));
+			offsets.position(from);
+			segments[i] = offsets.slice();
+		}
+		return segments;
+	}
+
+	private static long headerHash(SAMFileHeader header){
+		String text = header.getTextHeader();
+		if(text == null){
+			StringBuilder sb = new StringBuilder();
+			for(SAMSequenceRecord sequence: header.getSequenceDictionary().getSequences())
+				sb.append(sequence.getSequenceName()).append('\t').append(sequence.getSequenceLength()).append('\n');
+			text = sb.toString();
+		}
+		//64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < text.length(); i++){
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	private static boolean sidecarMatches(File sidecar, File bamFile, long headerHash) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(sidecar));
+		try {
+			byte[] magic = new byte[SIDECAR_MAGIC.length()];
+			in.readFully(magic);
+			return new String(magic, "US-ASCII").equals(SIDECAR_MAGIC) && in.readInt() == SIDECAR_VERSION
+					&& in.readLong() == bamFile.length() && in.readLong() == bamFile.lastModified()
+					&& in.readLong() == headerHash && in.readInt() == BLOCK_SHIFT;
+		} catch (IOException e){
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Layout: magic, version, BAM length, BAM modification time, header hash, block shift,
+	 * number of contigs, then name, length and data offset of each contig. The data of each
+	 * contig (block sums followed by per-base offsets) starts on an 8 byte boundary.
+	 */
+	private static byte[] sidecarHeader(File bamFile, long headerHash, ArrayList<SAMSequenceRecord> sequences, long[] dataOffsets) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeBytes(SIDECAR_MAGIC);
+		out.writeInt(SIDECAR_VERSION);
+		out.writeLong(bamFile.length());
+		out.writeLong(bamFile.lastModified());
+		out.writeLong(headerHash);
+		out.writeInt(BLOCK_SHIFT);
+		out.writeInt(sequences.size());
+		for(int i = 0; i < sequences.size(); i++){
+			out.writeUTF(sequences.get(i).getSequenceName());
+			out.writeInt(sequences.get(i).getSequenceLength());
+			out.writeLong(dataOffsets[i]);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static long contigDataSize(int length){
+		long size = 8L * numberOfBlocks(length) + 4L * (length + 1);
+		return (size + 7) & ~7L;
+	}
+
+	private static void writeSidecar(File sidecar, File bamFile, long headerHash, SAMFileReader samReader) throws IOException {
+		ArrayList<SAMSequenceRecord> sequences = new ArrayList<SAMSequenceRecord>(samReader.getFileHeader().getSequenceDictionary().getSequences());
+		long[] dataOffsets = new long[sequences.size()];
+		//the header has a fixed size, independent of the offsets written into it
+		long offset = (sidecarHeader(bamFile, headerHash, sequences, dataOffsets).length + 7) & ~7L;
+		for(int i = 0; i < sequences.size(); i++){
+			dataOffsets[i] = offset;
+			offset += contigDataSize(sequences.get(i).getSequenceLength());
+		}
+		//a file of its own, so that runs writing the same sidecar at the same time do not mix their data
+		File temp = File.createTempFile(sidecar.getName(), ".tmp", sidecar.getAbsoluteFile().getParentFile());
+		boolean moved = false;
+		try {
+			RandomAccessFile file = new RandomAccessFile(temp, "rw");
+			FileChannel channel = file.getChannel();
+			try {
+				channel.write(ByteBuffer.wrap(sidecarHeader(bamFile, headerHash, sequences, dataOffsets)), 0);
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+				for(int i = 0; i < sequences.size(); i++){
+					int length = sequences.get(i).getSequenceLength();
+					int[] coverage = new int[length + 2];
+					long[] blocks = new long[numberOfBlocks(length)];
+					countCoverage(samReader, sequences.get(i).getSequenceName(), coverage, blocks, length);
+					channel.position(dataOffsets[i]);
+					for(long b: blocks){
+						if(buffer.remaining() < 8)
+							flush(buffer, channel);
+						buffer.putLong(b);
+					}
+					for(int pos = 0; pos <= length; pos++){
+						if(buffer.remaining() < 4)
+							flush(buffer, channel);
+						buffer.putInt(coverage[pos]);
+					}
+					flush(buffer, channel);
+				}
+				file.setLength(offset);
+			} finally {
+				file.close();
+			}
+			if(!temp.renameTo(sidecar)){
+				sidecar.delete();
+				if(!temp.renameTo(sidecar))
+					throw new IOException("Unable to move "+temp+" to "+sidecar);
+			}
+			moved = true;
+		} finally {
+			if(!moved)
+				temp.delete();
+		}
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private static CoverageIndex mapSidecar(File sidecar) throws IOException {
+		CoverageIndex index = new CoverageIndex();
+		DataInputStream in = new DataInputStream(new FileInputStream(sidecar));
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		ArrayList<Long> dataOffsets = new ArrayList<Long>();
+		try {
+			in.skipBytes(SIDECAR_MAGIC.length() + 4 + 8 + 8 + 8 + 4);
+			int contigCount = in.readInt();
+			for(int i = 0; i < contigCount; i++){
+				names.add(in.readUTF());
+				lengths.add(in.readInt());
+				dataOffsets.add(in.readLong());
+			}
+		} finally {
+			in.close();
+		}
+		RandomAccessFile file = new RandomAccessFile(sidecar, "r");
+		FileChannel channel = file.getChannel();
+		try {
+			for(int i = 0; i < names.size(); i++){
+				int length = lengths.get(i);
+				long blocksSize = 8L * numberOfBlocks(length);
+				LongBuffer blocks = channel.map(FileChannel.MapMode.READ_ONLY, dataOffsets.get(i), blocksSize).asLongBuffer();
+				IntBuffer[] offsets = new IntBuffer[((length + 1) >>> SEGMENT_SHIFT) + 1];
+				for(int s = 0; s < offsets.length; s++){
+					long from = (long)s << SEGMENT_SHIFT;
+					long size = Math.min(length + 1 - from, SEGMENT_MASK + 1);
+					offsets[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffsets.get(i) + blocksSize + 4 * from, 4 * size).asIntBuffer();
+				}
+				index.contigs.put(names.get(i), new ContigCoverage(length, blocks, offsets));
+			}
+		} finally {
+			//mappings stay valid after the channel is closed
+			file.close();
+		}
+		return index;
+	}
+
+	@Override
+	public long[] getDepthSums(String chr, int[] boundaries) {
+		ContigCoverage contig = contigs.get(chr);
+		if(contig == null){
+			return null;
+		}
+		long[] sums = new long[boundaries.length - 1];
+		long previous = contig.prefixSum(clamp(boundaries[0] - 1, contig.length));
+		for(int i = 0; i < sums.length; i++){
+			long next = contig.prefixSum(clamp(boundaries[i + 1] - 1, contig.length));
+			sums[i] = next - previous;
+			previous = next;
+		}
+		return sums;
+	}
+
+	private static int clamp(int pos, int length){
+		return Math.max(0, Math.min(pos, length));
+	}
+
+	@Override
+	public ReadDepthSource forThread() {
+		//all lookups are absolute reads of the buffers
+		return this;
+	}
+
+	@Override
+	public void close() {
+		contigs.clear();
+	}
+}
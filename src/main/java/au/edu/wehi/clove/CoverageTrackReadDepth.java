@@ -0,0 +1,132 @@
+package au.edu.wehi.clove;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import htsjdk.tribble.readers.TabixReader;
+
+/*
+ * Read depth from a precomputed, bgzipped and tabix-indexed coverage track, so the BAM file is not needed.
+ * Accepted are interval tracks with the depth in the last column (bedGraph, mosdepth per-base or
+ * per-window output: chr, 0-based start, end, ..., depth) and per-base tracks with three columns
+ * (samtools depth output of a single sample: chr, 1-based position, depth). Window depths are spread
+ * evenly over their window. Which of the two a track is follows from its index, as samtools depth output
+ * of several samples has as many columns as an interval track; the columns of the first record are
+ * checked against it, and every further record has to have as many.
+ * Each instance owns its own reader of the track.
+ */
+class CoverageTrackReadDepth implements ReadDepthSource {
+
+	private String trackFile;
+	private TabixReader tabixReader;
+	//whether records are single positions, and the number of columns of every record (0 for an empty track)
+	private boolean perBase;
+	private int columns;
+
+	public CoverageTrackReadDepth(String trackFile) throws IOException {
+		this.trackFile = trackFile;
+		this.tabixReader = new TabixReader(trackFile);
+		this.perBase = indexedByPosition(trackFile);
+		this.columns = 0;
+		String line;
+		while((line = tabixReader.readLine()) != null){
+			if(line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+				continue;
+			columns = line.split("\t").length;
+			break;
+		}
+		if(perBase && columns != 0 && columns != 3)
+			throw new IOException("per-base coverage track with "+columns+" columns; only samtools depth output of a single sample is supported");
+		if(!perBase && columns != 0 && columns < 4)
+			throw new IOException("interval coverage track with "+columns+" columns; the depth has to follow chromosome, start and end");
+	}
+
+	private CoverageTrackReadDepth(String trackFile, boolean perBase, int columns) throws IOException {
+		this.trackFile = trackFile;
+		this.tabixReader = new TabixReader(trackFile);
+		this.perBase = perBase;
+		this.columns = columns;
+	}
+
+	/*
+	 * Whether the tabix index of the track has the same begin and end column,
+	 * as for samtools depth output (tabix -s1 -b2 -e2), rather than intervals (tabix -p bed).
+	 */
+	private static boolean indexedByPosition(String trackFile) throws IOException {
+		DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(trackFile + ".tbi")));
+		try {
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			if(magic[0] != 'T' || magic[1] != 'B' || magic[2] != 'I' || magic[3] != 1)
+				throw new IOException("not a tabix index: "+trackFile+".tbi");
+			int[] header = new int[6];
+			//n_ref, format, col_seq, col_beg, col_end, meta; little endian
+			for(int i = 0; i < header.length; i++)
+				header[i] = Integer.reverseBytes(in.readInt());
+			return header[4] == 0 || header[4] == header[3];
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public long[] getDepthSums(String chr, int[] boundaries) {
+		int tid = tabixReader.chr2tid(chr);
+		if(tid < 0){
+			return null;
+		}
+		double[] sums = new double[boundaries.length - 1];
+		int last = boundaries[boundaries.length - 1] - 1;
+		try {
+			TabixReader.Iterator iter = tabixReader.query(tid, boundaries[0] - 1, last);
+			String line;
+			while(iter != null && (line = iter.next()) != null){
+				String[] bits = line.split("\t");
+				if(bits.length != columns)
+					throw new IOException("record with "+bits.length+" instead of "+columns+" columns: "+line);
+				int start, end;
+				double depth = Double.parseDouble(bits[bits.length - 1]);
+				if(perBase){
+					start = end = Integer.parseInt(bits[1]);
+				} else {
+					start = Integer.parseInt(bits[1]) + 1;
+					end = Integer.parseInt(bits[2]);
+				}
+				start = Math.max(start, boundaries[0]);
+				end = Math.min(end, last);
+				//add the overlap with every segment the record covers
+				int segment = Arrays.binarySearch(boundaries, start);
+				if(segment < 0)
+					segment = -segment - 2;
+				for(int pos = start; pos <= end; segment++){
+					int segmentEnd = Math.min(end, boundaries[segment + 1] - 1);
+					sums[segment] += depth * (segmentEnd - pos + 1);
+					pos = segmentEnd + 1;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to read coverage track "+trackFile, e);
+		}
+		long[] roundedSums = new long[sums.length];
+		for(int i = 0; i < sums.length; i++)
+			roundedSums[i] = Math.round(sums[i]);
+		return roundedSums;
+	}
+
+	@Override
+	public ReadDepthSource forThread() {
+		try {
+			return new CoverageTrackReadDepth(trackFile, perBase, columns);
+		} catch (IOException e) {
+			throw new RuntimeException("Unable to open coverage track "+trackFile, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		tabixReader.close();
+	}
+}
@@ -1,9 +1,10 @@
 package au.edu.wehi.clove;
 
-import java.util.HashSet;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 
 enum EVENT_TYPE {INS, INV1, INV2, DEL, TAN, INVTX1, INVTX2, ITX1, ITX2, XXX, COMPLEX_INVERSION, COMPLEX_INVERTED_DUPLICATION, COMPLEX_DUPLICATION, COMPLEX_TRANSLOCATION, COMPLEX_INVERTED_TRANSLOCATION, COMPLEX_INTERCHROMOSOMAL_TRANSLOCATION, COMPLEX_INTERCHROMOSOMAL_DUPLICATION, COMPLEX_INTERCHROMOSOMAL_INVERTED_TRANSLOCATION, COMPLEX_INTERCHROMOSOMAL_INVERTED_DUPLICATION};
@@ -21,8 +22,17 @@ public class Event {
 	private String qual;
 	private String filter;
 	private String info;
-	private HashSet<Clove.SV_ALGORITHM> calledBy;
+	/*
+	 * Columns ID to INFO of the caller's VCF line, which stand in for the fields above,
+	 * one bit per column in lineColumns, until a column is set. Saves a String per column.
+	 */
+	private String line;
+	private byte lineColumns;
+	//one bit per SV_ALGORITHM (by ordinal)
+	private int calledBy;
 	private int calledTimes;
+
+	private static final int ID = 0, REF = 1, ALT = 2, QUAL = 3, FILTER = 4, INFO = 5, ALL_COLUMNS = 0x3F;
 		
 	public Event(GenomicCoordinate c1, GenomicCoordinate c2, EVENT_TYPE type){
 		if(c1.compareTo(c2) < 0){
@@ -35,7 +45,7 @@ public class Event {
 		this.type = type;
 		myNodes = new GenomicNode[2];
 		this.info="";
-		this.calledBy = new HashSet<Clove.SV_ALGORITHM>();
+		this.calledBy = 0;
 		this.calledTimes = 0;
 	}
 	
@@ -45,7 +55,7 @@ public class Event {
 	}
 
 	/*Create event with VCF Info*/
-	public Event(GenomicCoordinate c1, GenomicCoordinate c2, EVENT_TYPE type, String id, String ref, String alt, String qual, String filter, String info, HashSet<Clove.SV_ALGORITHM> calledBy, int calledTimes){
+	public Event(GenomicCoordinate c1, GenomicCoordinate c2, EVENT_TYPE type, String id, String ref, String alt, String qual, String filter, String info, Clove.SV_ALGORITHM calledBy, int calledTimes){
 		if(c1.compareTo(c2) < 0){
 			this.c1 = c1;
 			this.c2 = c2;
@@ -62,9 +72,21 @@ public class Event {
 		this.qual=qual;
 		this.filter=filter;
 		this.info=info;
-		this.calledBy = calledBy;
+		this.calledBy = 1 << calledBy.ordinal();
 		this.calledTimes = calledTimes;
 	}
+
+	/*Create event with the VCF columns ID to INFO of the caller's VCF line*/
+	public Event(GenomicCoordinate c1, GenomicCoordinate c2, EVENT_TYPE type, String vcfLine, Clove.SV_ALGORITHM calledBy, int calledTimes){
+		this(c1, c2, type, null, null, null, null, null, null, calledBy, calledTimes);
+		//without CHROM and POS in front and FORMAT and samples after INFO
+		int start = vcfLine.indexOf('\t', vcfLine.indexOf('\t') + 1) + 1;
+		int end = start;
+		for(int i = ID; i <= INFO; i++)
+			end = vcfLine.indexOf('\t', end) + 1;
+		this.line = vcfLine.substring(start, (end == 0? vcfLine.length() : end - 1));
+		this.lineColumns = ALL_COLUMNS;
+	}
 	
 	/*
 	 * Static function to handle the particularities of Socrates output, and convert it into a general
@@ -138,7 +160,7 @@ public class Event {
 		String alt=altVCF(type);
 		String info="SVTYPE="+alt.substring(1, 4)+";CHR2="+chr2+";END="+p2;
 				
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.SOCRATES);}}, 1);
+		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, Clove.SV_ALGORITHM.SOCRATES, 1);
 	}
 	/*
 	 * Function to classify a line of Socrates output into a genomic event type.
@@ -223,22 +245,14 @@ public class Event {
 	 * purpose Event.
 	 */
 	public static Event createNewEventFromDellyOutputLatest(String output){
-		String[] bits = output.split("\t");
-		String chr1 = bits[0];
-		int p1 = Integer.parseInt(bits[1]);
-		String[] moreBits = bits[7].split(";");
-		String chr2 = moreBits[5].replace("CHR2=", "");
-		int p2 = Integer.parseInt(moreBits[6].replace("END=", ""));
-		String o = moreBits[7].replace("CT=", "");
-		String o1 = (Integer.parseInt(o.split("to")[0]) == 3? "+" : "-");
-		String o2 = (Integer.parseInt(o.split("to")[1]) == 3? "+" : "-");
-		
-		String id=bits[2];
-		String ref=bits[3];
-		String alt=bits[4];
-		String qual=bits[5];
-		String filter=bits[6];
-		String info=bits[7];
+		VcfTokenizer t = VcfTokenizer.get(output);
+		String chr1 = t.field(0);
+		int p1 = t.intField(1);
+		String chr2 = t.info("CHR2");
+		int p2 = t.infoInt("END");
+		String o = t.info("CT");
+		String o1 = (connectionEnd(o, true) == 3? "+" : "-");
+		String o2 = (connectionEnd(o, false) == 3? "+" : "-");
 		
 		GenomicCoordinate c1 = new GenomicCoordinate(chr1, p1);
 		GenomicCoordinate c2 = new GenomicCoordinate(chr2, p2);
@@ -246,27 +260,19 @@ public class Event {
 		
 		//System.out.println(chr1 +"\t"+ p1 +"\t"+ p2 +"\t" + type +"\t"+ typeT);
 		
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.DELLY);}}, 1);
+		return new Event(c1, c2, type, output, Clove.SV_ALGORITHM.DELLY, 1);
 		//return new Event(c1, c2, type);
 		
 	}
 	public static Event createNewEventFromDelly2Output(String output){
-		String[] bits = output.split("\t");
-		String chr1 = bits[0];
-		int p1 = Integer.parseInt(bits[1]);
-		String[] moreBits = bits[7].split(";");
-		String chr2 = moreBits[3].replace("CHR2=", "");
-		int p2 = Integer.parseInt(moreBits[4].replace("END=", ""));
-		String o = moreBits[7].replace("CT=", "");
-		String o1 = (Integer.parseInt(o.split("to")[0]) == 3? "+" : "-");
-		String o2 = (Integer.parseInt(o.split("to")[1]) == 3? "+" : "-");
-		
-		String id=bits[2];
-		String ref=bits[3];
-		String alt=bits[4];
-		String qual=bits[5];
-		String filter=bits[6];
-		String info=bits[7];
+		VcfTokenizer t = VcfTokenizer.get(output);
+		String chr1 = t.field(0);
+		int p1 = t.intField(1);
+		String chr2 = t.info("CHR2");
+		int p2 = t.infoInt("END");
+		String o = t.info("CT");
+		String o1 = (connectionEnd(o, true) == 3? "+" : "-");
+		String o2 = (connectionEnd(o, false) == 3? "+" : "-");
 		
 		GenomicCoordinate c1 = new GenomicCoordinate(chr1, p1);
 		GenomicCoordinate c2 = new GenomicCoordinate(chr2, p2);
@@ -274,10 +280,17 @@ public class Event {
 		
 		//System.out.println(chr1 +"\t"+ p1 +"\t"+ p2 +"\t" + type +"\t"+ typeT);
 		
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.DELLY2);}}, 1);
+		return new Event(c1, c2, type, output, Clove.SV_ALGORITHM.DELLY2, 1);
 		//return new Event(c1, c2, type);
 		
 	}
+	/*
+	 * Ends joined by a Delly connection type, e.g. 3 and 5 for "3to5".
+	 */
+	private static int connectionEnd(String connectionType, boolean first){
+		int to = connectionType.indexOf("to");
+		return Integer.parseInt(first? connectionType.substring(0, to) : connectionType.substring(to + 2));
+	}
 	/*
 	 * Function to classify a line of BedPE into a genomic event type.
 	 * The distinctions between INV1/2 etc are arbitrary, and have to be consistent across all the inputs.
@@ -292,40 +305,21 @@ public class Event {
 	 * purpose Event.
 	 */
 	public static Event createNewEventFromMetaSVOutput(String output){
-		String[] bits = output.split("\t");
-		String chr1 = bits[0];
-		int p1 = Integer.parseInt(bits[1]);
-		String[] moreBits = bits[7].split(";");
-		String chr2 = chr1;
+		VcfTokenizer t = VcfTokenizer.get(output);
+		String chr1 = t.field(0);
+		int p1 = t.intField(1);
+		String chr2 = t.info("CHR2");
+		if(chr2 == null)
+			chr2 = chr1;
+		//END or SVLEN, whichever comes last
 		int p2 = 0;
-		String o1 = null;
-		String o2 = null;
-		for(String s: moreBits){
-			if(s.startsWith("CHR2"))
-				chr2 = s.replace("CHR2=", "");
-			else if(s.startsWith("END="))
-				p2 = Integer.parseInt(s.replace("END=", ""));
-			else if(s.startsWith("SVLEN="))
-				p2 = p1 + Integer.parseInt(s.replace("SVLEN=", ""));
-			else if(s.startsWith("BD_ORI1")){
-				String o = s.replace("BD_ORI1=", "");
-				int fwd = Integer.parseInt(o.split("[+-]")[0]);
-				int rev = Integer.parseInt(o.split("[+-]")[1]);
-				o1 = (fwd>rev ? "+" : "-");}
-			
-			else if(s.startsWith("BD_ORI2")){
-				String o = s.replace("BD_ORI2=", "");
-				int fwd = Integer.parseInt(o.split("[+-]")[0]);
-				int rev = Integer.parseInt(o.split("[+-]")[1]);
-				o2 = (fwd>rev ? "+" : "-");
-			}		
-		}
-		String id=bits[2];
-		String ref=bits[3];
-		String alt=bits[4];
-		String qual=bits[5];
-		String filter=bits[6];
-		String info=bits[7];
+		if(t.infoOffset("END") > t.infoOffset("SVLEN"))
+			p2 = t.infoInt("END");
+		else if(t.infoOffset("SVLEN") >= 0)
+			p2 = p1 + t.infoInt("SVLEN");
+		String o1 = metaSVOrientation(t.info("BD_ORI1"));
+		String o2 = metaSVOrientation(t.info("BD_ORI2"));
+		String alt=t.field(4);
 		
 		GenomicCoordinate c1 = new GenomicCoordinate(chr1, p1);
 		GenomicCoordinate c2 = new GenomicCoordinate(chr2, p2);
@@ -340,11 +334,28 @@ public class Event {
 		
 		//System.out.println(chr1 +"\t"+ p1 +"\t"+ p2 +"\t" + type +"\t"+ typeT);
 		
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.METASV);}}, 1);
+		return new Event(c1, c2, type, output, Clove.SV_ALGORITHM.METASV, 1);
 		//return new Event(c1, c2, type);
 		
 	}
 	
+	/*
+	 * Orientation from MetaSV read counts per strand, e.g. "+" for "5+3-".
+	 */
+	private static String metaSVOrientation(String o){
+		if(o == null)
+			return null;
+		int sign = 0;
+		while(o.charAt(sign) != '+' && o.charAt(sign) != '-')
+			sign++;
+		int next = sign + 1;
+		while(next < o.length() && o.charAt(next) != '+' && o.charAt(next) != '-')
+			next++;
+		int fwd = Integer.parseInt(o.substring(0, sign));
+		int rev = Integer.parseInt(o.substring(sign + 1, next));
+		return (fwd>rev ? "+" : "-");
+	}
+	
 	private static EVENT_TYPE classifyMetaSVBreakpoint(String t, String c1, String c2, String o1, String o2){
 		if(t.equals("<DEL>")){
 			return EVENT_TYPE.DEL;
@@ -399,7 +410,7 @@ public class Event {
 		GenomicCoordinate c2 = new GenomicCoordinate(chr2, p2);
 		EVENT_TYPE type = classifySocratesBreakpoint(c1, o1, c2, o2);
 		info+="SVTYPE="+type+";CHR2="+chr2+";END="+p2;
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.BEDPE);}}, 1);
+		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, Clove.SV_ALGORITHM.BEDPE, 1);
 	}
 	
 	
@@ -461,7 +472,7 @@ public class Event {
 		String alt=altVCF(type);
 		String info="SVTYPE="+alt.substring(1, 4)+";CHR2="+chr2+";END="+p2;
 		
-		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.CREST);}}, 1);
+		return new Event(c1, c2, type, id, ref, alt, qual, filter, info, Clove.SV_ALGORITHM.CREST, 1);
 	}
 	
 	private static EVENT_TYPE classifyCrestBreakpoint(String t, String c1, String c2, String o1, String o2){
@@ -572,15 +583,12 @@ public class Event {
 
     public static Event createNewEventFromGRIDSSOutput(String output) {
 
-        Pattern pattern;
-        Matcher matcher;
-
-        String[] bits = output.split("\t");
+        VcfTokenizer t = VcfTokenizer.get(output);
 
-        String chr1 = bits[0], chr2 = "";
+        String chr1 = t.field(0), chr2 = "";
         String orientation1 = "", orientation2 = "";
-        int p1 = Integer.parseInt(bits[1]), p2 = -1;
-        String alt = bits[4];
+        int p1 = t.intField(1), p2 = -1;
+        String alt = t.field(4);
         String[] result = Event.classifyAltGridssLumpy(alt);
 
         chr2 = result[0];
@@ -595,23 +603,16 @@ public class Event {
              type = Event.classifySocratesBreakpoint(c1, orientation1, c2, orientation2);
         }
 
-        pattern = Pattern.compile("SVTYPE=(.+?)");
-        matcher = pattern.matcher(bits[7]);
-        matcher.find();
-
-        String id = bits[2];
-        String ref = bits[3];
-        String qual = bits[5];
-        String filter = bits[6];
         String info="SVTYPE="+type+";CHR2="+chr2+";END="+p2;
-        if (matcher.groupCount() != 0){
-            info = matcher.group(1);
+        //as with the former pattern "SVTYPE=(.+?)", only the first character of the SV type is kept
+        String svType = t.info("SVTYPE");
+        if (svType != null && !svType.isEmpty()){
+            info = svType.substring(0, 1);
         }
 
-        return new Event(
-                c1, c2, type, id, ref, alt, qual, filter, info,
-                new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.GRIDSS);}}, 1
-        );
+        Event e = new Event(c1, c2, type, output, Clove.SV_ALGORITHM.GRIDSS, 1);
+        e.setInfo(info);
+        return e;
     }
 
     
@@ -624,46 +625,15 @@ public class Event {
          * */
         String[] result = new String[4];
 
-        if(alt.contains("]")) {
-
-            String[] item = alt.split("]");
-            if (item.length == 3){
-                // ALT: ]p]t --> len 3
-                result[0] = item[1].split(":")[0];
-                result[1] = item[1].split(":")[1];
-
-                result[2] = "-";
-                result[3] = "+";
-
-            } else {
-                // ALT: t]p] --> len 2
-                result[0] = item[1].split(":")[0];
-                result[1] = item[1].split(":")[1];
-
-                result[2] = "+";
-                result[3] = "+";
-            }
-
-        } else { // if(alt.contains("["))
-
-            String[] item = alt.split("\\[");
-            if (item.length == 3) {
-                // ALT: [p[t --> become 3
-                result[0] = item[1].split(":")[0];
-                result[1] = item[1].split(":")[1];
-
-                result[2] = "-";
-                result[3] = "-";
-
-            } else {
-                // ALT: t[p[ --> become 2
-                result[0] = item[1].split(":")[0];
-                result[1] = item[1].split(":")[1];
-
-                result[2] = "+";
-                result[3] = "-";
-            }
-        }
+        char bracket = (alt.indexOf(']') >= 0? ']' : '[');
+        int first = alt.indexOf(bracket), second = alt.indexOf(bracket, first + 1);
+        int colon = alt.indexOf(':', first + 1), nextColon = alt.indexOf(':', colon + 1);
+        result[0] = alt.substring(first + 1, colon);
+        result[1] = alt.substring(colon + 1, (nextColon >= 0 && nextColon < second? nextColon : second));
+        // ]p]t and [p[t start with the bracket, t]p] and t[p[ with the sequence
+        boolean bracketFirst = first == 0 && second < alt.length() - 1;
+        result[2] = (bracketFirst? "-" : "+");
+        result[3] = (bracket == ']'? "+" : "-");
 
         return result;
     }
@@ -673,39 +643,18 @@ public class Event {
     /*****************************************************************************************************************/
     public static Event createNewEventFromLUMPYOutput(String output) {
 
-        Pattern pattern; Matcher matcher;
+        VcfTokenizer t = VcfTokenizer.get(output);
         String orientation1 = "", orientation2 = "";
-        String[] bits = output.split("\t");
-        String chr1 = bits[0], chr2 = "";
-        int p1 = Integer.parseInt(bits[1]), p2 = -1;
-
-        String id = bits[2];
-        String ref = bits[3];
-        String alt = bits[4];
-        String qual = bits[5];
-        String filter = bits[6];
-        String info = bits[7];
-
-        /* get strands */
-        pattern = Pattern.compile("STRANDS=(.+?);");
-        matcher = pattern.matcher(bits[7]);
-        String strands = "";
-
-        if (matcher.find()){
-            strands = matcher.group(1);
-        }
+        String chr1 = t.field(0), chr2 = "";
+        int p1 = t.intField(1), p2 = -1;
+
+        String alt = t.field(4);
+        t.checkInfo();
 
         if (alt.equals("<INV>")) {
-            int posStrand = 0, negStrand = 0;
-            
             /* Get END */
-            pattern = Pattern.compile("END=(.+?);");
-            matcher = pattern.matcher(bits[7]);
-
             chr2 = chr1;
-            if (matcher.find()){
-                p2 = Integer.parseInt(matcher.group(1));
-            }
+            p2 = t.infoInt("END", -1);
             
             GenomicCoordinate c1 = new GenomicCoordinate(chr1, p1);
             GenomicCoordinate c2 = new GenomicCoordinate(chr2, p2);
@@ -719,24 +668,17 @@ public class Event {
 
             String orientation = "";
             /* get orientation */
-            pattern = Pattern.compile("STRANDS=(.+?):");
-            matcher = pattern.matcher(bits[7]);
-
-            if (matcher.find()){
-                orientation = matcher.group(1);
+            String strands = t.info("STRANDS");
+            if (strands != null && strands.indexOf(':') > 0){
+                orientation = strands.substring(0, strands.indexOf(':'));
             }
 
             orientation1 = orientation.substring(0,1);
             orientation2 = orientation.substring(1,1);
 
             /* Get END */
-            pattern = Pattern.compile("END=(.+?);");
-            matcher = pattern.matcher(bits[7]);
-
             chr2 = chr1;
-            if (matcher.find()){
-                p2 = Integer.parseInt(matcher.group(1));
-            }
+            p2 = t.infoInt("END", -1);
 
         } else {
             String[] result = Event.classifyAltGridssLumpy(alt);
@@ -754,10 +696,7 @@ public class Event {
         EVENT_TYPE type = Event.classifySocratesBreakpoint(c1, orientation1, c2, orientation2);
 
         /*return new Event(c1, c2, type);*/
-        return new Event(
-                c1, c2, type, id, ref, alt, qual, filter, info,
-                new HashSet<Clove.SV_ALGORITHM>() {{add(Clove.SV_ALGORITHM.LUMPY);}}, 1
-        );
+        return new Event(c1, c2, type, output, Clove.SV_ALGORITHM.LUMPY, 1);
     }
 
 	
@@ -826,52 +765,78 @@ public class Event {
 		}
 	}
 	
+	/*
+	 * The value of a VCF column: the field, or a copy of the column in line if it has not been set.
+	 */
+	private String column(int column, String value){
+		if((lineColumns & 1 << column) == 0)
+			return value;
+		int start = 0;
+		for(int i = 0; i < column; i++)
+			start = line.indexOf('\t', start) + 1;
+		int end = line.indexOf('\t', start);
+		return line.substring(start, (end < 0? line.length() : end));
+	}
+
+	private void columnSet(int column){
+		lineColumns &= ~(1 << column);
+		if(lineColumns == 0)
+			line = null;
+	}
+
 	public String getId() {
-		return id;
+		return column(ID, id);
 	}
 
 	public void setId(String id) {
 		this.id = id;
+		columnSet(ID);
 	}
 
 	public String getQual() {
-		return qual;
+		return column(QUAL, qual);
 	}
 
 	public void setQual(String qual) {
 		this.qual = qual;
+		columnSet(QUAL);
 	}
 
 	public String getAlt() {
-		return alt;
+		return column(ALT, alt);
 	}
 
 	public void setAlt(String alt) {
 		this.alt = alt;
+		columnSet(ALT);
 	}
 
 	public String getFilter() {
+		String filter = column(FILTER, this.filter);
 		return (filter==null? ".":filter);
 	}
 
 	public void setFilter(String filter) {
 		this.filter = filter;
+		columnSet(FILTER);
 	}
 
 	public String getRef() {
-		return ref;
+		return column(REF, ref);
 	}
 
 	public void setRef(String ref) {
 		this.ref = ref;
+		columnSet(REF);
 	}
 
 	public String getInfo() {
-		return info;
+		return column(INFO, info);
 	}
 
 	public void setInfo(String info) {
 		this.info = info;
+		columnSet(INFO);
 	}
 
 	public GenomicCoordinate getCoord() {
@@ -882,6 +847,20 @@ public class Event {
 		coord = newCoord;
 	}
 
+	/*
+	 * The type of the events that events of the given type can form a complex event with
+	 * in the classification, or null if they start none.
+	 */
+	public static EVENT_TYPE pairedType(EVENT_TYPE type){
+		switch(type){
+		case INV1:		return EVENT_TYPE.INV2;
+		case DEL:		return EVENT_TYPE.TAN;
+		case ITX1:		return EVENT_TYPE.ITX2;
+		case INVTX1:	return EVENT_TYPE.INVTX2;
+		default:		return null;
+		}
+	}
+	
 	public static String altVCF(EVENT_TYPE type){
 		if(type.equals(EVENT_TYPE.DEL)){
 			return "<DEL>";
@@ -920,11 +899,14 @@ public class Event {
 		} 
 	}
 	
-	public HashSet<Clove.SV_ALGORITHM> getCalledBy() {
+	/*
+	 * The callers of this event, one bit per SV_ALGORITHM.
+	 */
+	public int getCalledBy() {
 		return calledBy;
 	}
-	public void addCaller(HashSet<Clove.SV_ALGORITHM> caller){
-		this.calledBy.addAll(caller);
+	public void addCaller(int callers){
+		this.calledBy |= callers;
 	}
 
 	public int getCalledTimes() {
@@ -937,10 +919,69 @@ public class Event {
 	public String toVcf() {
 		return this.getCoord().getChr()+"\t"+this.getCoord().getPos()+"\t"+this.getId()+"\t"
 				+this.getRef()+"\t"+this.getAlt()+"\t"+this.getQual()+"\t"+this.getFilter()
-				+"\t"+this.getInfo()+";SUPPORT="+this.calledBy.size()+","+this.calledTimes;
+				+"\t"+this.getInfo()+";SUPPORT="+Integer.bitCount(this.calledBy)+","+this.calledTimes;
 	}
 	
 	public void setFailFilter(){
-		this.filter = "FAIL";
+		setFilter("FAIL");
+	}
+
+	/*
+	 * Writes a parsed event, before it is placed in the graph, to an event cache (see EventCache).
+	 */
+	void write(DataOutputStream out, Hashtable<String, Integer> contigs) throws IOException {
+		out.writeBoolean(this instanceof ComplexEvent);
+		out.writeByte(type.ordinal());
+		writeCoordinate(out, c1, contigs);
+		writeCoordinate(out, c2, contigs);
+		writeCoordinate(out, coord, contigs);
+		EventCache.writeString(out, additionalInformation);
+		EventCache.writeString(out, id);
+		EventCache.writeString(out, ref);
+		EventCache.writeString(out, alt);
+		EventCache.writeString(out, qual);
+		EventCache.writeString(out, filter);
+		EventCache.writeString(out, info);
+		EventCache.writeString(out, line);
+		out.writeByte(lineColumns);
+		out.writeInt(calledBy);
+		out.writeInt(calledTimes);
+	}
+
+	static Event read(DataInputStream in, String[] contigs) throws IOException {
+		boolean complex = in.readBoolean();
+		EVENT_TYPE type = EVENT_TYPE.values()[in.readByte()];
+		GenomicCoordinate c1 = readCoordinate(in, contigs);
+		GenomicCoordinate c2 = readCoordinate(in, contigs);
+		Event e = (complex? new ComplexEvent(c1, c2, type, new Event[] {}, null) : new Event(c1, c2, type));
+		e.coord = readCoordinate(in, contigs);
+		e.additionalInformation = EventCache.readString(in);
+		e.id = EventCache.readString(in);
+		e.ref = EventCache.readString(in);
+		e.alt = EventCache.readString(in);
+		e.qual = EventCache.readString(in);
+		e.filter = EventCache.readString(in);
+		e.info = EventCache.readString(in);
+		e.line = EventCache.readString(in);
+		e.lineColumns = in.readByte();
+		e.calledBy = in.readInt();
+		e.calledTimes = in.readInt();
+		return e;
+	}
+
+	private static void writeCoordinate(DataOutputStream out, GenomicCoordinate c, Hashtable<String, Integer> contigs) throws IOException {
+		if(c == null){
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(contigs.get(c.getChr()));
+		out.writeInt(c.getPos());
+	}
+
+	private static GenomicCoordinate readCoordinate(DataInputStream in, String[] contigs) throws IOException {
+		int contig = in.readInt();
+		if(contig < 0)
+			return null;
+		return new GenomicCoordinate(contigs[contig], in.readInt());
 	}
 }
@@ -0,0 +1,183 @@
+package au.edu.wehi.clove;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.zip.CRC32;
+
+import au.edu.wehi.clove.Clove.SV_ALGORITHM;
+
+/*
+ * Binary files with the parsed events of an input file, so that later runs on the same input
+ * do not parse it again. The files live in one directory and are named after the CRC32 and
+ * length of the input and the caller, so a changed input simply misses the cache.
+ * Running Socrates and Crest IDs are stored as numbered within their input (see EventParser).
+ * The order of the coordinates of an event and types such as ITX1/ITX2 follow the contig order
+ * (see ContigDictionary), which depends on the BAM file, so a cache is only used under the same
+ * order of its contigs.
+ */
+class EventCache {
+
+	static final String SUFFIX = ".cloveevents";
+	private static final String MAGIC = "CLOVEEVT";
+	private static final int VERSION = 2;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/*
+	 * The cache file of one input file and caller.
+	 */
+	class Entry {
+		private File file;
+		private long length;
+		private long checksum;
+		private SV_ALGORITHM algorithm;
+
+		private Entry(File file, long length, long checksum, SV_ALGORITHM algorithm){
+			this.file = file;
+			this.length = length;
+			this.checksum = checksum;
+			this.algorithm = algorithm;
+		}
+
+		/*
+		 * The cached events, or null if there are none for this input.
+		 */
+		public ArrayList<Event> load(){
+			if(!file.exists())
+				return null;
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+				try {
+					byte[] magic = new byte[MAGIC.length()];
+					in.readFully(magic);
+					if(!new String(magic, "US-ASCII").equals(MAGIC) || in.readInt() != VERSION || in.readLong() != length
+							|| in.readLong() != checksum || !in.readUTF().equals(algorithm.name()))
+						return null;
+					String[] contigs = new String[in.readInt()];
+					for(int i = 0; i < contigs.length; i++)
+						contigs[i] = in.readUTF();
+					for(int i = 1; i < contigs.length; i++){
+						if(ContigDictionary.BY_REFERENCE_ORDER.compare(contigs[i - 1], contigs[i]) >= 0){
+							System.out.println("Event cache "+file+" was written under a different contig order; parsing input.");
+							return null;
+						}
+					}
+					int size = in.readInt();
+					ArrayList<Event> events = new ArrayList<Event>(size);
+					for(int i = 0; i < size; i++)
+						events.add(Event.read(in, contigs));
+					System.out.println("Using event cache "+file);
+					return events;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e){
+				System.err.println("Unable to use event cache "+file+" ("+e.getMessage()+"); parsing input.");
+				return null;
+			}
+		}
+
+		/*
+		 * Layout: magic, version, input length, input CRC32, caller, number of contigs and their names
+		 * in contig order, number of events, then the events (see Event.write()). Written to a temporary file first,
+		 * so that concurrent runs never see a partial cache.
+		 */
+		public void store(ArrayList<Event> events) throws IOException {
+			System.out.println("Writing event cache "+file+"...");
+			HashSet<String> names = new HashSet<String>();
+			for(Event e: events){
+				names.add(e.getC1().getChr());
+				names.add(e.getC2().getChr());
+			}
+			ArrayList<String> contigs = ContigDictionary.inReferenceOrder(names);
+			Hashtable<String, Integer> contigIndex = new Hashtable<String, Integer>();
+			for(String contig: contigs)
+				contigIndex.put(contig, contigIndex.size());
+			File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), BUFFER_SIZE));
+			try {
+				out.writeBytes(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(length);
+				out.writeLong(checksum);
+				out.writeUTF(algorithm.name());
+				out.writeInt(contigs.size());
+				for(String contig: contigs)
+					out.writeUTF(contig);
+				out.writeInt(events.size());
+				for(Event e: events)
+					e.write(out, contigIndex);
+			} finally {
+				out.close();
+			}
+			if(!temporary.renameTo(file)){
+				file.delete();
+				if(!temporary.renameTo(file)){
+					temporary.delete();
+					throw new IOException("Unable to move "+temporary+" to "+file);
+				}
+			}
+		}
+	}
+
+	private File directory;
+
+	public EventCache(File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create directory "+directory);
+		this.directory = directory;
+	}
+
+	/*
+	 * The cache entry of the input file, found by the checksum of its content.
+	 */
+	public Entry entry(String inputFile, SV_ALGORITHM algorithm) throws IOException {
+		CRC32 crc = new CRC32();
+		long length = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = new FileInputStream(inputFile);
+		try {
+			int n;
+			while((n = in.read(buffer)) > 0){
+				crc.update(buffer, 0, n);
+				length += n;
+			}
+		} finally {
+			in.close();
+		}
+		String name = String.format("%08x-%d.%s%s", crc.getValue(), length, algorithm.name().toLowerCase(), SUFFIX);
+		return new Entry(new File(directory, name), length, crc.getValue(), algorithm);
+	}
+
+	/*
+	 * Strings of any length, null included.
+	 */
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if(s == null){
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,470 @@
+package au.edu.wehi.clove;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.GZIPInputStream;
+
+import au.edu.wehi.clove.Clove.SV_ALGORITHM;
+import htsjdk.samtools.util.Tuple;
+import htsjdk.tribble.readers.TabixReader;
+
+/*
+ * Turns the lines of the input files into events. With more than one thread, lines are read
+ * in chunks that are parsed on a fork-join pool while reading goes on; the events are still
+ * collected in input order, and the running IDs of Socrates and Crest calls are assigned
+ * by line, so the result is identical to a serial run.
+ * Several input files are read at the same time, each by its own thread, and their parsed
+ * chunks are handed through one bounded queue to the collecting thread (see parseAll()).
+ * With an event cache, inputs parsed before are loaded from it instead.
+ * With target regions, only events with a breakpoint in them are kept, and tabix-indexed
+ * GRIDSS inputs are only read where they overlap the regions (see RegionLineReader).
+ */
+class EventParser {
+
+	//lines handed to a single parsing task
+	private static final int CHUNK_LINES = 1 << 14;
+	//parsed chunks on their way to the collecting thread, of all inputs or of a single one (see parse())
+	private static final int QUEUE_CHUNKS = 16;
+
+	/*
+	 * The lines of an input, one at a time; readLine() returns null at the end.
+	 */
+	private interface LineSource {
+		public String readLine() throws IOException;
+
+		public void close() throws IOException;
+	}
+
+	/*
+	 * All lines of an input file.
+	 */
+	private static class FileLineReader implements LineSource {
+		private BufferedReader reader;
+
+		private FileLineReader(BufferedReader reader){
+			this.reader = reader;
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			return reader.readLine();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	/*
+	 * The lines of a tabix-indexed input that overlap the target regions, read region by region.
+	 * A line overlapping several regions is returned once.
+	 */
+	private static class RegionLineReader implements LineSource {
+		private TabixReader tabixReader;
+		private Regions regions;
+		private int chromosome, region;
+		private TabixReader.Iterator lines;
+		//lines of the earlier regions of the chromosome, and of the current one
+		private HashSet<String> previous, current;
+
+		private RegionLineReader(String fileName, Regions regions) throws IOException {
+			this.tabixReader = new TabixReader(fileName);
+			this.regions = regions;
+			this.chromosome = 0;
+			this.region = -1;
+			this.previous = new HashSet<String>();
+			this.current = new HashSet<String>();
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			while(true){
+				if(lines != null){
+					String line = lines.next();
+					if(line != null){
+						if(previous.contains(line))
+							continue;
+						current.add(line);
+						return line;
+					}
+					lines = null;
+				}
+				if(!nextRegion())
+					return null;
+			}
+		}
+
+		private boolean nextRegion(){
+			previous.addAll(current);
+			current.clear();
+			while(chromosome < regions.chromosomes().size()){
+				String chr = regions.chromosomes().get(chromosome);
+				int tid = tabixReader.chr2tid(chr);
+				if(tid >= 0 && ++region < regions.size(chr)){
+					lines = tabixReader.query(tid, regions.start(chr, region) - 1, regions.end(chr, region));
+					return true;
+				}
+				chromosome++;
+				region = -1;
+				previous.clear();
+			}
+			return false;
+		}
+
+		@Override
+		public void close() {
+			tabixReader.close();
+		}
+	}
+
+	/*
+	 * A chunk of parsed events of one input, or the end of that input if events is null.
+	 */
+	private static class ParsedChunk {
+		private int input;
+		private ForkJoinTask<ArrayList<Event>> events;
+		private IOException error;
+
+		private ParsedChunk(int input, ForkJoinTask<ArrayList<Event>> events, IOException error){
+			this.input = input;
+			this.events = events;
+			this.error = error;
+		}
+	}
+
+	//running number for the IDs of Socrates and Crest calls, continued across inputs
+	private int count;
+	private int threads;
+	private ForkJoinPool pool;
+	//inflates the BGZF blocks of all inputs read at the same time, so that they share the threads
+	private ExecutorService inflaters;
+	private EventCache cache;
+	private Regions regions;
+
+	public EventParser(int threads){
+		this.count = 0;
+		this.threads = threads;
+		if(threads > 1){
+			this.pool = new ForkJoinPool(threads);
+			this.inflaters = BgzfInputStream.newPool(threads);
+		}
+	}
+
+	/*
+	 * Keeps only events with a breakpoint in the regions.
+	 */
+	public void setRegions(Regions regions){
+		this.regions = regions;
+	}
+
+	/*
+	 * Whether only the parts of the input overlapping the target regions are read. This needs a
+	 * tabix index, and a caller that writes a record for each breakend: other callers write a
+	 * single record for calls like translocations, which is not found by the region of its mate.
+	 */
+	private boolean readsRegions(Tuple<String, SV_ALGORITHM> input){
+		return regions != null && input.b == SV_ALGORITHM.GRIDSS && new File(input.a + ".tbi").isFile();
+	}
+
+	private LineSource open(Tuple<String, SV_ALGORITHM> input) throws IOException {
+		if(readsRegions(input))
+			return new RegionLineReader(input.a, regions);
+		return new FileLineReader(open(input.a, inflaters, threads));
+	}
+
+	/*
+	 * Opens an input file, which may be plain text, gzip or BGZF compressed.
+	 * BGZF blocks are inflated on the given number of threads.
+	 */
+	public static BufferedReader open(String fileName, int threads) throws IOException {
+		return open(fileName, null, threads);
+	}
+
+	/*
+	 * Opens an input file as above, inflating BGZF blocks on a shared pool of threads, if any.
+	 */
+	private static BufferedReader open(String fileName, ExecutorService inflaters, int threads) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+		if(BgzfInputStream.isBgzf(in))
+			in = (inflaters != null? new BgzfInputStream(in, inflaters, threads) : new BgzfInputStream(in, threads));
+		else if(BgzfInputStream.isGzip(in))
+			in = new GZIPInputStream(in);
+		return new BufferedReader(new InputStreamReader(in));
+	}
+
+	public void setCache(EventCache cache){
+		this.cache = cache;
+	}
+
+	/*
+	 * Parses all input files and appends their events to allEvents, in the order of the inputs.
+	 * With more than one thread, the files are read concurrently.
+	 */
+	public void parseAll(ArrayList<Tuple<String, SV_ALGORITHM>> inputs, ArrayList<Event> allEvents) throws IOException {
+		//cache entries of the inputs that had to be parsed
+		EventCache.Entry[] misses = new EventCache.Entry[inputs.size()];
+		ArrayList<ArrayList<Event>> events;
+		if(pool == null || inputs.size() < 2){
+			events = new ArrayList<ArrayList<Event>>();
+			for(int i = 0; i < inputs.size(); i++){
+				System.out.println("Reading input...");
+				Tuple<String, SV_ALGORITHM> input = inputs.get(i);
+				ArrayList<Event> inputEvents = lookup(input, i, misses);
+				if(inputEvents == null){
+					inputEvents = new ArrayList<Event>();
+					LineSource reader = open(input);
+					parse(reader, input.b, inputEvents);
+					reader.close();
+				}
+				events.add(inputEvents);
+			}
+		} else {
+			events = readConcurrently(inputs, misses);
+		}
+		//append the inputs in the order given
+		for(int i = 0; i < inputs.size(); i++){
+			SV_ALGORITHM algorithm = inputs.get(i).b;
+			if(misses[i] != null){
+				try {
+					misses[i].store(events.get(i));
+				} catch (IOException e){
+					System.err.println("Unable to write event cache ("+e.getMessage()+").");
+				}
+			}
+			if(hasRunningIds(algorithm)){
+				//each input was numbered from 0
+				if(count > 0)
+					renumber(events.get(i), algorithm, count);
+				count += events.get(i).size();
+			}
+			if(regions == null){
+				allEvents.addAll(events.get(i));
+			} else {
+				for(Event e: events.get(i)){
+					if(regions.overlaps(e))
+						allEvents.add(e);
+				}
+			}
+			events.set(i, null);
+		}
+	}
+
+	/*
+	 * The cached events of the input, or null if it has to be parsed; then its cache entry is put into misses.
+	 */
+	private ArrayList<Event> lookup(Tuple<String, SV_ALGORITHM> input, int index, EventCache.Entry[] misses) throws IOException {
+		//inputs read by region are not complete, and fast to read anyway
+		if(cache == null || readsRegions(input))
+			return null;
+		EventCache.Entry entry = cache.entry(input.a, input.b);
+		ArrayList<Event> events = entry.load();
+		if(events == null)
+			misses[index] = entry;
+		return events;
+	}
+
+	/*
+	 * Reads each input on its own thread, and collects the chunks of each input in file order.
+	 */
+	private ArrayList<ArrayList<Event>> readConcurrently(ArrayList<Tuple<String, SV_ALGORITHM>> inputs, final EventCache.Entry[] misses) throws IOException {
+		final BlockingQueue<ParsedChunk> queue = new ArrayBlockingQueue<ParsedChunk>(QUEUE_CHUNKS);
+		for(int i = 0; i < inputs.size(); i++){
+			System.out.println("Reading input...");
+			final int index = i;
+			final Tuple<String, SV_ALGORITHM> input = inputs.get(i);
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					IOException error = null;
+					try {
+						final ArrayList<Event> cached = lookup(input, index, misses);
+						if(cached != null){
+							queue.put(new ParsedChunk(index, pool.submit(new Callable<ArrayList<Event>>() {
+								@Override
+								public ArrayList<Event> call() {
+									return cached;
+								}
+							}), null));
+						} else {
+							LineSource reader = open(input);
+							try {
+								readChunks(reader, input.b, index, queue);
+							} finally {
+								reader.close();
+							}
+						}
+					} catch (IOException e){
+						error = e;
+					} catch (InterruptedException e){
+						return;
+					}
+					try {
+						queue.put(new ParsedChunk(index, null, error));
+					} catch (InterruptedException e){
+						return;
+					}
+				}
+			}, "input-"+i);
+			reader.setDaemon(true);
+			reader.start();
+		}
+		ArrayList<ArrayList<Event>> events = new ArrayList<ArrayList<Event>>();
+		for(int i = 0; i < inputs.size(); i++)
+			events.add(new ArrayList<Event>());
+		int running = inputs.size();
+		while(running > 0){
+			ParsedChunk chunk;
+			try {
+				chunk = queue.take();
+			} catch (InterruptedException e){
+				throw new IOException(e);
+			}
+			if(chunk.events != null){
+				events.get(chunk.input).addAll(chunk.events.join());
+				continue;
+			}
+			if(chunk.error != null)
+				throw chunk.error;
+			running--;
+		}
+		return events;
+	}
+
+	/*
+	 * Reads the input in chunks, submits them for parsing and queues them, numbering Socrates and Crest calls from 0.
+	 */
+	private void readChunks(LineSource input, SV_ALGORITHM algorithm, int index, BlockingQueue<ParsedChunk> queue) throws IOException, InterruptedException {
+		int chunkCount = 0;
+		String line;
+		ArrayList<String> lines = new ArrayList<String>(CHUNK_LINES);
+		while ((line = input.readLine()) != null){
+			if(line.startsWith("#"))
+				continue;
+			lines.add(line);
+			if(lines.size() == CHUNK_LINES){
+				queue.put(new ParsedChunk(index, submitChunk(lines, algorithm, chunkCount), null));
+				if(hasRunningIds(algorithm))
+					chunkCount += lines.size();
+				lines = new ArrayList<String>(CHUNK_LINES);
+			}
+		}
+		if(!lines.isEmpty())
+			queue.put(new ParsedChunk(index, submitChunk(lines, algorithm, chunkCount), null));
+	}
+
+	private static boolean hasRunningIds(SV_ALGORITHM algorithm){
+		return algorithm == SV_ALGORITHM.SOCRATES || algorithm == SV_ALGORITHM.CREST;
+	}
+
+	/*
+	 * Continues the numbering of an input's calls from firstCount. Every line counts, but calls without
+	 * an ID (inserted sequences, Crest inversions) are left without one, as in a serial run.
+	 */
+	private static void renumber(ArrayList<Event> events, SV_ALGORITHM algorithm, int firstCount){
+		String prefix = (algorithm == SV_ALGORITHM.SOCRATES? "SOC" : "CRT");
+		for(int i = 0; i < events.size(); i++){
+			if(events.get(i).getId() != null)
+				events.get(i).setId(prefix+Integer.toString(firstCount + i));
+		}
+	}
+
+	/*
+	 * Parses all lines of the input, skipping header lines, and appends the events to allEvents.
+	 * Socrates and Crest calls are numbered from 0.
+	 */
+	private void parse(LineSource input, SV_ALGORITHM algorithm, ArrayList<Event> allEvents) throws IOException {
+		String line;
+		int count = 0;
+		if(pool == null){
+			while ((line = input.readLine()) != null){
+				//TODO: make # check algorithm specific?
+				if(line.startsWith("#"))
+					continue;
+				count = parseLine(line, algorithm, count, allEvents);
+			}
+			return;
+		}
+		//at most QUEUE_CHUNKS chunks in flight; the oldest is appended before the next one is submitted
+		ArrayDeque<ForkJoinTask<ArrayList<Event>>> chunks = new ArrayDeque<ForkJoinTask<ArrayList<Event>>>();
+		ArrayList<String> lines = new ArrayList<String>(CHUNK_LINES);
+		while ((line = input.readLine()) != null){
+			if(line.startsWith("#"))
+				continue;
+			lines.add(line);
+			if(lines.size() == CHUNK_LINES){
+				if(chunks.size() == QUEUE_CHUNKS)
+					allEvents.addAll(chunks.poll().join());
+				chunks.add(submitChunk(lines, algorithm, count));
+				if(hasRunningIds(algorithm))
+					count += lines.size();
+				lines = new ArrayList<String>(CHUNK_LINES);
+			}
+		}
+		if(!lines.isEmpty()){
+			chunks.add(submitChunk(lines, algorithm, count));
+			if(hasRunningIds(algorithm))
+				count += lines.size();
+		}
+		while(!chunks.isEmpty())
+			allEvents.addAll(chunks.poll().join());
+	}
+
+	private ForkJoinTask<ArrayList<Event>> submitChunk(final ArrayList<String> lines, final SV_ALGORITHM algorithm, final int firstCount){
+		return pool.submit(new Callable<ArrayList<Event>>() {
+			@Override
+			public ArrayList<Event> call() {
+				ArrayList<Event> events = new ArrayList<Event>(lines.size());
+				int chunkCount = firstCount;
+				for(String line: lines)
+					chunkCount = parseLine(line, algorithm, chunkCount, events);
+				//the finished task keeps this callable, so let go of the text
+				lines.clear();
+				lines.trimToSize();
+				return events;
+			}
+		});
+	}
+
+	/*
+	 * Parses one line and returns the running number for the next one.
+	 */
+	private static int parseLine(String line, SV_ALGORITHM algorithm, int count, ArrayList<Event> events){
+		Event e;
+		switch(algorithm){
+		case SOCRATES: 	e = Event.createNewEventFromSocratesOutputLatest(line, count++); 	break;
+		case DELLY: 	e = Event.createNewEventFromDellyOutputLatest(line);break;
+		case DELLY2:	e = Event.createNewEventFromDelly2Output(line);break;
+		case CREST:		e = Event.createNewEventFromCrestOutputLatest(line, count++); 		break;
+		case GUSTAF: 	e = Event.createNewEventFromGustafOutput(line);	  if(e.size()<50) return count; break;
+		case BEDPE: 	e = Event.createNewEventFromBEDPE(line); break;
+		case METASV:	e = Event.createNewEventFromMetaSVOutput(line); break;
+		case GRIDSS:	e = Event.createNewEventFromGRIDSSOutput(line); break;
+		case LUMPY:		e = Event.createNewEventFromLUMPYOutput(line); break;
+		default:		e = null;
+		}
+		events.add(e);
+		return count;
+	}
+
+	public void close(){
+		if(pool != null)
+			pool.shutdown();
+		if(inflaters != null)
+			inflaters.shutdown();
+	}
+}
@@ -1,11 +1,12 @@
 package au.edu.wehi.clove;
 
+import au.edu.wehi.clove.ContigDictionary.Contig;
 
 class GenomicCoordinate implements Comparable<GenomicCoordinate>{
-	private String chr;
+	private Contig contig;
 	private int pos;
 	public GenomicCoordinate(String chr, int pos){
-		this.chr = chr;
+		this.contig = ContigDictionary.get(chr);
 		this.pos = pos;
 	}
 	@Override
@@ -15,20 +16,18 @@ class GenomicCoordinate implements Comparable<GenomicCoordinate>{
 				return -1;
 			if(this.pos > other.pos)
 				return 1;
-			return this.chr.compareTo(other.chr);
+			return 0;
 		}
 		return compareChromosomes(other);
 	}
 	public String getChr() {
-		return chr;
+		return contig.getName();
 	}
 	public int getPos() {
 		return pos;
 	}
 	public boolean onSameChromosome(GenomicCoordinate other){
-		if (this.chr.equals(other.chr))
-			return true;
-		return false;
+		return this.contig == other.contig;
 	}
 	public int distanceTo(GenomicCoordinate other){
 		if(!onSameChromosome(other))
@@ -37,10 +36,10 @@ class GenomicCoordinate implements Comparable<GenomicCoordinate>{
 	}
 	@Override
 	public String toString() {
-		return chr+":"+pos;
+		return contig.getName()+":"+pos;
 	}
-	
+
 	private int compareChromosomes(GenomicCoordinate other){
-		return this.chr.compareTo(other.chr); 
+		return ContigDictionary.compare(this.contig, other.contig);
 	}
-}
\ No newline at end of file
+}
@@ -1,31 +1,45 @@
 package au.edu.wehi.clove;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 
 
 public class GenomicNode implements Comparable<GenomicNode>{
 	private static int global_node_id_counter = 0;
-	public static int global_event_merge_counter = 0;
+	public static final AtomicInteger global_event_merge_counter = new AtomicInteger(0);
+	//guards the checked flags of all nodes, see awaitChecked()
+	private static final Object checkedLock = new Object();
 
 	private GenomicCoordinate start, end;
 	private ArrayList<Event> events;
-	private Integer id;
+	//start position in the upper and node id in the lower 32 bits, see compareTo()
+	private long sortKey;
+	private boolean checked;
+	//the events by their other node, in the order of the event list; built on first use, see eventTo()
+	private Hashtable<GenomicNode, ArrayList<Event>> adjacency;
 	
 	public GenomicNode(GenomicCoordinate coord){
 		this.start = coord;
 		this.end  = coord;
-		this.id = global_node_id_counter++;
+		this.sortKey = ((long)coord.getPos() << 32) | global_node_id_counter++;
 	}
 	
 	public GenomicNode(GenomicCoordinate coord, Event e){
 		this.start = coord;
 		this.end  = coord;
-		this.events = new ArrayList<Event>();
+		//most nodes keep a single event
+		this.events = new ArrayList<Event>(2);
 		events.add(e);
-		this.id = global_node_id_counter++;
+		this.sortKey = ((long)coord.getPos() << 32) | global_node_id_counter++;
 	}
 
 	public GenomicCoordinate getStart() {
@@ -36,19 +50,68 @@ public class GenomicNode implements Comparable<GenomicNode>{
 		return end;
 	}
 
+	/*
+	 * The events of the node. Changes have to go through addEvent() and removeEvent(), which
+	 * keep the adjacency index in step.
+	 */
 	public ArrayList<Event> getEvents() {
 		return events;
 	}
+	
+	public void addEvent(Event e){
+		events.add(e);
+		index(e);
+	}
+	
+	public void addEvents(Collection<? extends Event> added){
+		for(Event e: added)
+			addEvent(e);
+	}
+	
+	/*
+	 * Removes the event, which has to point to this node, if it is in the node.
+	 */
+	public boolean removeEvent(Event e){
+		if(!events.remove(e))
+			return false;
+		if(adjacency != null){
+			GenomicNode partner = e.otherNode(this);
+			ArrayList<Event> partnerEvents = adjacency.get(partner);
+			partnerEvents.remove(e);
+			if(partnerEvents.isEmpty())
+				adjacency.remove(partner);
+		}
+		return true;
+	}
+	
+	public void removeEvents(Collection<? extends Event> removed){
+		if(adjacency == null){
+			events.removeAll(removed);
+			return;
+		}
+		for(Event e: removed)
+			removeEvent(e);
+	}
+	
+	private void index(Event e){
+		if(adjacency == null)
+			return;
+		GenomicNode partner = e.otherNode(this);
+		ArrayList<Event> partnerEvents = adjacency.get(partner);
+		if(partnerEvents == null){
+			partnerEvents = new ArrayList<Event>(1);
+			adjacency.put(partner, partnerEvents);
+		}
+		partnerEvents.add(e);
+	}
 
 	@Override
 	public int compareTo(GenomicNode other) {
 		//this compare method never spits out equal, so that the adding to TreeSets 
 		//would not ignore them (unless it's actually identical).
-		int compare = this.start.compareTo(other.start);
-		if(compare == 0)
-			return this.id.compareTo(other.id);
-		else
-			return compare;
+		if(this.start.onSameChromosome(other.start))
+			return Long.compare(this.sortKey, other.sortKey);
+		return this.start.compareTo(other.start);
 	}
 	
 	/*
@@ -66,52 +129,203 @@ public class GenomicNode implements Comparable<GenomicNode>{
 		if(other.events.size() == 0)
 			return;
 		Event e = other.events.get(0);
-		if(!events.contains(e)){
+		boolean added = !events.contains(e);
+		if(added){
 			events.add(e);
 		}
 		//adjust pointers to new node where applicable
-		if(e.getC1() == other.start){
+		if(e.getNode(true) == other){
 			e.setNode(this, true);
 		}
-		if(e.getC2() == other.start){
-			e.setNode(this, false);
-		}
-		if(e.getC2() == other.end){
+		if(e.getNode(false) == other){
 			e.setNode(this, false);
 		}
+		//the partner of e changed for both of its nodes
+		if(added)
+			index(e);
+		else
+			this.adjacency = null;
+		GenomicNode partner = e.otherNode(this);
+		if(partner != this)
+			partner.adjacency = null;
 	}
 
-	public void checkForRedundantEvents(int maxDistanceForNodes){
-		Event e1, e2;
+	/*
+	 * Merges events of the same type whose other nodes start less than maxDistanceForNodes apart
+	 * into the first of them, in the order of the event list. Events are sorted by type and the
+	 * start of their other node, so the candidates of an event are found in a window around it
+	 * instead of by comparing all pairs. An event still in the list when its turn comes has no
+	 * earlier event in its window, as that would have merged it, so the whole window is merged.
+	 * partners holds the start of the other node of every event, as seen by the merge sweep (see NodeList).
+	 */
+	public void checkForRedundantEvents(int maxDistanceForNodes, final GenomicCoordinate[] partners){
+		final int n = events.size();
+		if(n < 2)
+			return;
+		final EVENT_TYPE[] types = new EVENT_TYPE[n];
+		Integer[] sorted = new Integer[n];
+		for(int i = 0; i < n; i++){
+			types[i] = events.get(i).getType();
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i, Integer j) {
+				if(types[i] != types[j])
+					return types[i].compareTo(types[j]);
+				int c = partners[i].compareTo(partners[j]);
+				return (c != 0? c : Integer.compare(i, j));
+			}
+		});
+		int[] rank = new int[n];
+		for(int r = 0; r < n; r++)
+			rank[sorted[r]] = r;
+		//events that are merged or done are skipped: next alive rank to the right, and one plus the next alive rank to the left
+		int[] right = new int[n + 1], left = new int[n + 1];
+		for(int r = 0; r <= n; r++){
+			right[r] = r;
+			left[r] = r;
+		}
+		boolean[] redundant = new boolean[n];
+		ArrayList<Integer> window = new ArrayList<Integer>();
 		HashSet<Event> redundantEvents = new HashSet<Event>();
-		for(int i=0; i<events.size(); i++){
-			e1 = events.get(i);
-			if(redundantEvents.contains(e1)) continue;
-			for(int j=i+1; j< events.size(); j++){
-				e2=events.get(j);
-				if(redundantEvents.contains(e2)) continue;
-				if(e1.otherNode(this).getStart().distanceTo(e2.otherNode(this).getStart()) < maxDistanceForNodes && e1.getType() == e2.getType()) {
-				//if(Event.sameNodeSets(e1,e2) && e1.getType() == e2.getType()){
-					//System.out.println("Redundant events identified: "+e1+" "+e2);
-					e1.setId(e1.getId()+"-"+e2.getId());
-					e1.addCaller(e2.getCalledBy());
-					e1.increaseCalls(e2.getCalledTimes());
-					redundantEvents.add(e2);
-					global_event_merge_counter++;
-				}
+		for(int i = 0; i < n; i++){
+			if(redundant[i])
+				continue;
+			window.clear();
+			for(int r = alive(right, rank[i] + 1); r < n && redundantPair(i, sorted[r], types, partners, maxDistanceForNodes); r = alive(right, r + 1))
+				window.add(sorted[r]);
+			for(int r = alive(left, rank[i]) - 1; r >= 0 && redundantPair(i, sorted[r], types, partners, maxDistanceForNodes); r = alive(left, r) - 1)
+				window.add(sorted[r]);
+			remove(rank[i], right, left);
+			if(window.isEmpty())
+				continue;
+			Collections.sort(window);
+			Event e1 = events.get(i);
+			for(int j: window){
+				Event e2 = events.get(j);
+				//System.out.println("Redundant events identified: "+e1+" "+e2);
+				e1.setId(e1.getId()+"-"+e2.getId());
+				e1.addCaller(e2.getCalledBy());
+				e1.increaseCalls(e2.getCalledTimes());
+				redundant[j] = true;
+				redundantEvents.add(e2);
+				remove(rank[j], right, left);
+				global_event_merge_counter.incrementAndGet();
 			}
 		}
+		if(redundantEvents.isEmpty())
+			return;
+		//the other node may be on a chromosome checked by another thread
+		Hashtable<GenomicNode, HashSet<Event>> byOtherNode = new Hashtable<GenomicNode, HashSet<Event>>();
 		for(Event e: redundantEvents){
-			e.otherNode(this).getEvents().remove(e);
+			GenomicNode other = e.otherNode(this);
+			if(!byOtherNode.containsKey(other))
+				byOtherNode.put(other, new HashSet<Event>());
+			byOtherNode.get(other).add(e);
+		}
+		for(Entry<GenomicNode, HashSet<Event>> entry: byOtherNode.entrySet()){
+			GenomicNode other = entry.getKey();
+			synchronized(other){
+				other.removeEvents(entry.getValue());
+			}
+		}
+		synchronized(this){
+			removeEvents(redundantEvents);
 		}
-		this.events.removeAll(redundantEvents);
 	}
 	
-	public Event existsDeletionEventTo(GenomicNode other){
-		for(Event e: this.events){
-			if(e.otherNode(this) == other && e.getType()==EVENT_TYPE.DEL)
-				return e;
+	private static boolean redundantPair(int i, int j, EVENT_TYPE[] types, GenomicCoordinate[] partners, int maxDistanceForNodes){
+		return types[i] == types[j] && partners[i].distanceTo(partners[j]) < maxDistanceForNodes;
+	}
+	
+	/*
+	 * The first rank from r on that is still alive, compressing the path on the way.
+	 */
+	private static int alive(int[] next, int r){
+		while(next[r] != r){
+			next[r] = next[next[r]];
+			r = next[r];
+		}
+		return r;
+	}
+	
+	private static void remove(int r, int[] right, int[] left){
+		right[r] = r + 1;
+		left[r + 1] = r;
+	}
+	
+	/*
+	 * Whether the node has an event to another chromosome, whose other node may wait for this one.
+	 */
+	public boolean hasInterchromosomalEvent(){
+		for(Event e: events){
+			if(!e.otherNode(this).getStart().onSameChromosome(start))
+				return true;
+		}
+		return false;
+	}
+	
+	/*
+	 * Marks the node as checked for redundant events and wakes up the nodes waiting for it.
+	 */
+	public void setChecked(){
+		synchronized(checkedLock){
+			checked = true;
+			checkedLock.notifyAll();
+		}
+	}
+	
+	/*
+	 * Blocks until the node has been checked for redundant events (see setChecked()).
+	 */
+	public void awaitChecked() throws InterruptedException {
+		synchronized(checkedLock){
+			while(!checked)
+				checkedLock.wait();
+		}
+	}
+	
+	/*
+	 * The events to other nodes by type, in the order of the event list. Events from this
+	 * node to itself are left out.
+	 */
+	public Hashtable<EVENT_TYPE, ArrayList<Event>> eventsToOtherNodesByType(){
+		Hashtable<EVENT_TYPE, ArrayList<Event>> byType = new Hashtable<EVENT_TYPE, ArrayList<Event>>();
+		for(Event e: events){
+			if(e.otherNode(this) == this)
+				continue;
+			ArrayList<Event> typeEvents = byType.get(e.getType());
+			if(typeEvents == null){
+				typeEvents = new ArrayList<Event>();
+				byType.put(e.getType(), typeEvents);
+			}
+			typeEvents.add(e);
+		}
+		return byType;
+	}
+	
+	/*
+	 * The first event of the given type between this node and the other one, or null. Found in the
+	 * adjacency index, whose lists are short: redundant events of a type to the same node are merged.
+	 */
+	public Event eventTo(GenomicNode other, EVENT_TYPE type){
+		if(adjacency == null){
+			adjacency = new Hashtable<GenomicNode, ArrayList<Event>>();
+			for(Event e: events)
+				index(e);
+		}
+		ArrayList<Event> partnerEvents = adjacency.get(other);
+		if(partnerEvents != null){
+			for(Event e: partnerEvents){
+				if(e.getType() == type)
+					return e;
+			}
 		}
 		return null;
 	}
+	
+	public Event existsDeletionEventTo(GenomicNode other){
+		return eventTo(other, EVENT_TYPE.DEL);
+	}
 }
@@ -0,0 +1,192 @@
+package au.edu.wehi.clove;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * The nodes of one chromosome in coordinate order, backed by an array. Nodes are appended
+ * in sorted order while the graph is built (see BreakpointTable), and close nodes are merged
+ * in place by one sweep; from the outside the list is read-only.
+ * The chromosomes can be merged and checked for redundant events on several threads
+ * (see mergeNodes()), with the same result as in a single thread.
+ */
+class NodeList extends AbstractList<GenomicNode> implements RandomAccess {
+
+	private GenomicNode[] nodes;
+	private int size;
+	private int nodesMerged;
+
+	public NodeList(){
+		this.nodes = new GenomicNode[16];
+		this.size = 0;
+	}
+
+	/*
+	 * Appends a node, which must not come before the last one.
+	 */
+	void append(GenomicNode node){
+		if(size == nodes.length)
+			nodes = Arrays.copyOf(nodes, 2 * size);
+		nodes[size++] = node;
+	}
+
+	/*
+	 * Merges every node into the preceding one while it starts less than maxDistance after
+	 * the end of it. Only touches the nodes of this chromosome and their side of the events.
+	 */
+	private void mergeNodes(int maxDistance){
+		if(size == 0)
+			return;
+		int kept = 1;
+		GenomicNode lastNode = nodes[0], currentNode;
+		for(int i = 1; i < size; i++){
+			currentNode = nodes[i];
+			if(currentNode.getStart().distanceTo(lastNode.getEnd()) < maxDistance){
+				lastNode.mergeWithNode(currentNode);
+			} else {
+				lastNode = currentNode;
+				nodes[kept++] = currentNode;
+			}
+		}
+		nodesMerged = size - kept;
+		size = kept;
+		nodes = Arrays.copyOf(nodes, size);
+	}
+
+	/*
+	 * Checks every merged node for redundant events as the merge sweep closes it, i.e. when the
+	 * next node starts, with the chromosomes swept one after another in the given order.
+	 * All nodes are merged before, so the other node of an event that the sweep would not have
+	 * reached yet is seen as it was then: unmerged, starting at the breakpoint of the event.
+	 * A redundant event is also removed from its other node, so before a node is checked, the
+	 * nodes on earlier chromosomes that it shares events with are waited for.
+	 */
+	private void checkForRedundantEvents(int maxDistance, Hashtable<String, Integer> order) throws InterruptedException {
+		if(size == 0)
+			return;
+		int chrOrder = order.get(nodes[0].getStart().getChr());
+		ArrayList<GenomicNode> earlierNodes = new ArrayList<GenomicNode>();
+		for(int i = 0; i < size; i++){
+			GenomicNode node = nodes[i];
+			//the sweep has merged everything before the next node, or the whole chromosome
+			GenomicCoordinate sweep = (i + 1 < size? nodes[i + 1].getStart() : null);
+			earlierNodes.clear();
+			synchronized(node){
+				for(Event e: node.getEvents()){
+					GenomicNode other = e.otherNode(node);
+					if(!other.getStart().onSameChromosome(node.getStart()) && order.get(other.getStart().getChr()) < chrOrder)
+						earlierNodes.add(other);
+				}
+			}
+			for(GenomicNode other: earlierNodes)
+				other.awaitChecked();
+			//nodes on later chromosomes only wait for this one if they share an event with it
+			boolean waitedFor = node.hasInterchromosomalEvent();
+			if(node.getEvents().size() > 1){
+				GenomicCoordinate[] partnerStarts = new GenomicCoordinate[node.getEvents().size()];
+				for(int j = 0; j < partnerStarts.length; j++)
+					partnerStarts[j] = partnerStart(node.getEvents().get(j), node, sweep, chrOrder, order);
+				node.checkForRedundantEvents(maxDistance, partnerStarts);
+			}
+			if(waitedFor)
+				node.setChecked();
+		}
+	}
+
+	/*
+	 * The start of the other node of the event, as the sweep sees it when it closes the node.
+	 */
+	private static GenomicCoordinate partnerStart(Event e, GenomicNode node, GenomicCoordinate sweep, int chrOrder, Hashtable<String, Integer> order){
+		GenomicCoordinate breakpoint = (e.getNode(true) == node? e.getC2() : e.getC1());
+		boolean swept;
+		if(breakpoint.onSameChromosome(node.getStart()))
+			swept = (sweep == null || breakpoint.compareTo(sweep) < 0);
+		else
+			swept = order.get(breakpoint.getChr()) < chrOrder;
+		return (swept? e.otherNode(node).getStart() : breakpoint);
+	}
+
+	/*
+	 * Merges the nodes and checks them for redundant events, one chromosome after another in
+	 * the order of the table, or one chromosome per task with the same result. The tasks of
+	 * the check are started in that order, so a task only ever waits for chromosomes that are
+	 * already being checked.
+	 */
+	public static void mergeNodes(Hashtable<String, NodeList> genomicNodes, final int maxDistance, int threads){
+		ArrayList<String> chromosomes = new ArrayList<String>(genomicNodes.keySet());
+		final Hashtable<String, Integer> order = new Hashtable<String, Integer>();
+		for(String chr: chromosomes)
+			order.put(chr, order.size());
+		if(threads <= 1){
+			try {
+				for(String chr: chromosomes){
+					genomicNodes.get(chr).mergeNodes(maxDistance);
+					genomicNodes.get(chr).checkForRedundantEvents(maxDistance, order);
+				}
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<Future<Object>> tasks = new ArrayList<Future<Object>>();
+			for(String chr: chromosomes){
+				final NodeList nodeList = genomicNodes.get(chr);
+				tasks.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						nodeList.mergeNodes(maxDistance);
+						return null;
+					}
+				}));
+			}
+			//a check looks up the merged nodes of other chromosomes
+			for(Future<Object> task: tasks)
+				task.get();
+			tasks.clear();
+			for(String chr: chromosomes){
+				final NodeList nodeList = genomicNodes.get(chr);
+				tasks.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws InterruptedException {
+						nodeList.checkForRedundantEvents(maxDistance, order);
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> task: tasks)
+				task.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Node merging failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	public int nodesMerged(){
+		return nodesMerged;
+	}
+
+	@Override
+	public GenomicNode get(int index) {
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: "+index+", size: "+size);
+		return nodes[index];
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,58 @@
+package au.edu.wehi.clove;
+
+import java.io.File;
+import java.util.Iterator;
+
+import htsjdk.samtools.SAMFileReader;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.IntervalList;
+import htsjdk.samtools.util.SamLocusIterator;
+
+/*
+ * Original read depth engine: walks every locus of the interval with a SamLocusIterator.
+ * Each instance owns its own reader of the BAM file.
+ */
+class PileupReadDepth implements ReadDepthSource {
+	
+	private File bamFile;
+	private SAMFileReader samReader;
+	
+	public PileupReadDepth(File bamFile){
+		this.bamFile = bamFile;
+		this.samReader = new SAMFileReader(bamFile);
+	}
+
+	@Override
+	public long[] getDepthSums(String chr, int[] boundaries){
+		if(samReader.getFileHeader().getSequence(chr) == null){
+			return null;
+		}
+		long[] sums = new long[boundaries.length - 1];
+		Interval  interval=new  Interval(chr,boundaries[0],boundaries[boundaries.length - 1] - 1);
+		IntervalList  iL=new  IntervalList(samReader.getFileHeader());
+		iL.add(interval);
+
+		SamLocusIterator  sli=new  SamLocusIterator(samReader,iL,true);
+
+		int segment = 0;
+		for(Iterator<SamLocusIterator.LocusInfo> iter=sli.iterator(); iter.hasNext();){
+			SamLocusIterator.LocusInfo  locusInfo=iter.next();
+			while(locusInfo.getPosition() >= boundaries[segment + 1])
+				segment++;
+			sums[segment] += locusInfo.getRecordAndPositions().size();
+		}
+		sli.close();
+		
+		return sums;
+	}
+
+	@Override
+	public ReadDepthSource forThread() {
+		return new PileupReadDepth(bamFile);
+	}
+
+	@Override
+	public void close() {
+		samReader.close();
+	}
+}
@@ -0,0 +1,463 @@
+package au.edu.wehi.clove;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Collects the read depth requests of the classification and genotyping loops and answers
+ * them in one forward sweep per chromosome once all events are known.
+ * Overlapping requests are coalesced, so every base is only counted once, also when the same interval
+ * is requested again (e.g. by the complex events around one node).
+ * Optionally, the depth of long requests is estimated from a sample of windows, and depth
+ * checks are decided sequentially. Both may ask for more bases, which are counted in further sweeps;
+ * the windows of a request counted in full after all are not counted again.
+ */
+class ReadDepthScheduler {
+
+	private static class Request {
+		private Event event;
+		private int start, end;
+		private boolean checkDepth;
+		private double minDepth, maxDepth;
+		private ArrayList<Span> spans;
+		//sampled windows awaiting the accuracy check
+		private boolean sampled;
+		//chunks of a sequential test in the order they are counted, and whether the test stopped early
+		private int[] chunkOrder;
+		private int chunksQueued;
+		private boolean early;
+		private double readDepth;
+
+		private Request(Event event, int start, int end, boolean checkDepth, double minDepth, double maxDepth){
+			this.event = event;
+			this.start = start;
+			this.end = end;
+			this.checkDepth = checkDepth;
+			this.minDepth = minDepth;
+			this.maxDepth = maxDepth;
+			this.readDepth = -1;
+		}
+	}
+
+	/*
+	 * Stretch of a request that is actually counted: the whole request, a sampled window or a chunk.
+	 */
+	private static class Span {
+		private int start, end;
+		private long sum;
+		private boolean resolved;
+
+		private Span(int start, int end){
+			this.start = start;
+			this.end = end;
+		}
+
+		private int length(){
+			return end - start + 1;
+		}
+	}
+
+	private static final Comparator<Span> BY_COORDINATE = new Comparator<Span>() {
+		@Override
+		public int compare(Span s1, Span s2) {
+			if(s1.start != s2.start)
+				return Integer.compare(s1.start, s2.start);
+			return Integer.compare(s1.end, s2.end);
+		}
+	};
+
+	//two-sided 95% quantile of the normal distribution
+	private static final double Z_95 = 1.96;
+	//chunks counted in the first round of a sequential test; every further round doubles the count
+	private static final int SEQUENTIAL_FIRST_ROUND = 8;
+
+	private Hashtable<String, ArrayList<Request>> requests;
+	private int requestCount;
+
+	private int samplingMinLength, samplingWindows, samplingWindowLength;
+	private boolean samplingRandom;
+	private double samplingMaxError;
+	private int sequentialChunkLength;
+	private double sequentialZ;
+	private long requestedBases, scannedBases;
+	private int sampledRequests, fullScans, sequentialTests, earlyDecisions;
+
+	public ReadDepthScheduler(){
+		this.requests = new Hashtable<String, ArrayList<Request>>();
+		this.samplingMinLength = Integer.MAX_VALUE;
+	}
+
+	/*
+	 * Estimates the depth of requests longer than minLength from a number of windows, evenly spaced
+	 * or at random. If the 95% confidence interval of an estimate is wider than +/- maxError,
+	 * the whole request is counted after all.
+	 */
+	public void setSampling(int minLength, int windows, int windowLength, boolean random, double maxError){
+		this.samplingMinLength = minLength;
+		this.samplingWindows = windows;
+		this.samplingWindowLength = windowLength;
+		this.samplingRandom = random;
+		this.samplingMaxError = maxError;
+	}
+
+	/*
+	 * Counts requests with a depth range chunk by chunk, spread evenly over the interval, and stops
+	 * as soon as the confidence interval of the running estimate lies entirely inside or outside the range.
+	 */
+	public void setSequential(int chunkLength, double confidence){
+		if(chunkLength <= 0 || !(confidence > 0 && confidence < 1))
+			throw new IllegalArgumentException("Sequential test needs a chunk length above 0 and a confidence between 0 and 1");
+		this.sequentialChunkLength = chunkLength;
+		this.sequentialZ = normalQuantile(1 - (1 - confidence) / 2);
+	}
+
+	/*
+	 * Appends the read depth between start and end to the INFO of e.
+	 */
+	public void submit(Event e, GenomicCoordinate start, GenomicCoordinate end){
+		add(start.getChr(), new Request(e, start.getPos(), end.getPos(), false, 0, 0));
+	}
+
+	/*
+	 * Appends the read depth between start and end to the INFO of e,
+	 * and fails e unless the read depth lies within [minDepth, maxDepth].
+	 * Without a lower bound, pass Double.NEGATIVE_INFINITY rather than 0,
+	 * so that a sequential test can decide early on a depth close to 0.
+	 */
+	public void submit(Event e, String chr, int start, int end, double minDepth, double maxDepth){
+		add(chr, new Request(e, start, end, true, minDepth, maxDepth));
+	}
+
+	private void add(String chr, Request r){
+		ArrayList<Request> chrRequests = requests.get(chr);
+		if(chrRequests == null){
+			chrRequests = new ArrayList<Request>();
+			requests.put(chr, chrRequests);
+		}
+		chrRequests.add(r);
+		requestCount++;
+	}
+
+	/*
+	 * Answers all requests from the source and writes the results into their events.
+	 * Without a source (read depth check disabled), every request is answered with -1.
+	 * With more than one thread, clusters are spread over workers that each use their
+	 * own copy of the source; the results are identical to a serial run.
+	 */
+	public void resolve(ReadDepthSource source, int threads){
+		if(source != null){
+			Hashtable<String, ArrayList<Span>> pending = new Hashtable<String, ArrayList<Span>>();
+			for(Entry<String, ArrayList<Request>> entry: requests.entrySet()){
+				ArrayList<Span> chrSpans = new ArrayList<Span>();
+				for(Request r: entry.getValue()){
+					if(r.start >= r.end)
+						continue;
+					int length = r.end - r.start + 1;
+					requestedBases += length;
+					r.spans = new ArrayList<Span>();
+					if(r.checkDepth && sequentialChunkLength > 0 && length / sequentialChunkLength >= 2 * SEQUENTIAL_FIRST_ROUND)
+						startSequential(r);
+					else if(length > samplingMinLength)
+						sampleWindows(entry.getKey(), r);
+					else
+						r.spans.add(new Span(r.start, r.end));
+					chrSpans.addAll(r.spans);
+				}
+				pending.put(entry.getKey(), chrSpans);
+			}
+			//sweep until no request asks for more bases
+			int clusters = 0;
+			boolean more = true;
+			while(more){
+				clusters += sweep(source, pending, threads);
+				more = false;
+				for(Entry<String, ArrayList<Request>> entry: requests.entrySet()){
+					ArrayList<Span> chrSpans = new ArrayList<Span>();
+					for(Request r: entry.getValue()){
+						if(r.spans != null)
+							nextSpans(r, chrSpans);
+					}
+					pending.put(entry.getKey(), chrSpans);
+					more |= !chrSpans.isEmpty();
+				}
+			}
+
+			for(ArrayList<Request> chrRequests: requests.values()){
+				for(Request r: chrRequests){
+					if(r.spans != null)
+						r.readDepth = depth(r.spans);
+				}
+			}
+			System.out.println("Read depth requests: "+requestCount+" in "+clusters+" clusters, "
+					+scannedBases+" of "+requestedBases+" requested bases scanned");
+			if(sampledRequests > 0)
+				System.out.println("Read depth sampled for "+sampledRequests+" requests, "+fullScans+" of them counted in full");
+			if(sequentialTests > 0)
+				System.out.println("Read depth tested sequentially for "+sequentialTests+" requests, "+earlyDecisions+" of them decided early");
+		}
+		for(ArrayList<Request> chrRequests: requests.values()){
+			for(Request r: chrRequests){
+				r.event.setInfo(r.event.getInfo()+";ADP="+r.readDepth+(r.early? ";ADPEARLY" : ""));
+				//a negative depth means no data, which fails the check whatever the range
+				if(r.checkDepth && (r.readDepth < 0 || r.readDepth < r.minDepth || r.readDepth > r.maxDepth))
+					r.event.setFailFilter();
+			}
+		}
+		requests.clear();
+		requestCount = 0;
+		requestedBases = scannedBases = 0;
+		sampledRequests = fullScans = sequentialTests = earlyDecisions = 0;
+	}
+
+	/*
+	 * Adds the spans a request still needs after the last sweep, if any.
+	 */
+	private void nextSpans(Request r, ArrayList<Span> pending){
+		double estimate = depth(r.spans);
+		if(estimate < 0)
+			return;
+		if(r.sampled){
+			r.sampled = false;
+			if(Z_95 * standardError(r.spans, 0) > samplingMaxError){
+				countRest(r, pending);
+				fullScans++;
+			}
+		} else if(r.chunkOrder != null && r.chunksQueued < r.chunkOrder.length){
+			double halfWidth = sequentialZ * standardError(r.spans, (double)r.chunksQueued / r.chunkOrder.length);
+			boolean inside = estimate - halfWidth >= r.minDepth && estimate + halfWidth <= r.maxDepth;
+			boolean outside = estimate + halfWidth < r.minDepth || estimate - halfWidth > r.maxDepth;
+			if(inside || outside){
+				r.early = true;
+				r.chunkOrder = null;
+				earlyDecisions++;
+				return;
+			}
+			int last = Math.min(2 * r.chunksQueued, r.chunkOrder.length);
+			for(; r.chunksQueued < last; r.chunksQueued++){
+				Span chunk = chunk(r, r.chunkOrder[r.chunksQueued]);
+				r.spans.add(chunk);
+				pending.add(chunk);
+			}
+		}
+	}
+
+	/*
+	 * Counts a sampled request in full, reusing its windows: the windows that do not overlap an
+	 * earlier one and the gaps between them tile the request, and only the gaps are queued.
+	 */
+	private void countRest(Request r, ArrayList<Span> pending){
+		ArrayList<Span> tiles = new ArrayList<Span>();
+		int next = r.start;
+		//the windows are sorted by start
+		for(Span window: r.spans){
+			if(window.start < next)
+				continue;
+			if(window.start > next){
+				Span gap = new Span(next, window.start - 1);
+				tiles.add(gap);
+				pending.add(gap);
+			}
+			tiles.add(window);
+			next = window.end + 1;
+		}
+		if(next <= r.end){
+			Span gap = new Span(next, r.end);
+			tiles.add(gap);
+			pending.add(gap);
+		}
+		r.spans = tiles;
+	}
+
+	/*
+	 * Splits a request into chunks and queues the first round. The chunks are visited in bit-reversed
+	 * order, so that every round is spread evenly over the whole interval.
+	 */
+	private void startSequential(Request r){
+		sequentialTests++;
+		int chunks = (int)(((long)r.end - r.start) / sequentialChunkLength + 1);
+		int bits = 32 - Integer.numberOfLeadingZeros(chunks - 1);
+		r.chunkOrder = new int[chunks];
+		int n = 0;
+		for(int i = 0; i < 1 << bits; i++){
+			int chunk = Integer.reverse(i) >>> (32 - bits);
+			if(chunk < chunks)
+				r.chunkOrder[n++] = chunk;
+		}
+		for(; r.chunksQueued < SEQUENTIAL_FIRST_ROUND; r.chunksQueued++)
+			r.spans.add(chunk(r, r.chunkOrder[r.chunksQueued]));
+	}
+
+	private Span chunk(Request r, int i){
+		int chunkStart = r.start + i * sequentialChunkLength;
+		return new Span(chunkStart, (int)Math.min((long)chunkStart + sequentialChunkLength - 1, r.end));
+	}
+
+	/*
+	 * Windows of equal length spread over the request. Random windows are seeded with the
+	 * request coordinates, so repeated runs and any number of threads give the same estimate.
+	 */
+	private void sampleWindows(String chr, Request r){
+		int length = r.end - r.start + 1;
+		int stride = length / samplingWindows;
+		int windowLength = Math.min(samplingWindowLength, stride);
+		if(samplingWindows < 2 || windowLength < 1){
+			r.spans.add(new Span(r.start, r.end));
+			return;
+		}
+		sampledRequests++;
+		r.sampled = true;
+		int[] starts = new int[samplingWindows];
+		Random random = new Random(31L * (31L * chr.hashCode() + r.start) + r.end);
+		for(int i = 0; i < samplingWindows; i++){
+			if(samplingRandom)
+				starts[i] = r.start + random.nextInt(length - windowLength + 1);
+			else
+				starts[i] = r.start + i * stride + (stride - windowLength) / 2;
+		}
+		Arrays.sort(starts);
+		for(int i = 0; i < samplingWindows; i++)
+			r.spans.add(new Span(starts[i], starts[i] + windowLength - 1));
+	}
+
+	/*
+	 * Standard error of the mean depth of the spans, corrected for the given fraction of the interval already counted.
+	 */
+	private static double standardError(ArrayList<Span> spans, double countedFraction){
+		double mean = depth(spans);
+		double squares = 0;
+		for(Span s: spans){
+			double d = (double)s.sum/s.length() - mean;
+			squares += d * d;
+		}
+		return Math.sqrt(squares / (spans.size() - 1) / spans.size() * (1 - countedFraction));
+	}
+
+	private static double depth(ArrayList<Span> spans){
+		long total = 0, bases = 0;
+		for(Span s: spans){
+			if(!s.resolved)
+				return -1;
+			total += s.sum;
+			bases += s.length();
+		}
+		return (double)total/bases;
+	}
+
+	/*
+	 * Quantile of the standard normal distribution (Abramowitz and Stegun 26.2.23, error below 4.5e-4).
+	 */
+	private static double normalQuantile(double p){
+		double q = Math.min(p, 1 - p);
+		double t = Math.sqrt(-2 * Math.log(q));
+		double z = t - (2.515517 + 0.802853 * t + 0.010328 * t * t) / (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+		return p < 0.5? -z : z;
+	}
+
+	/*
+	 * Counts all spans, one cluster of overlapping spans at a time, and returns the number of clusters.
+	 */
+	private int sweep(final ReadDepthSource source, Hashtable<String, ArrayList<Span>> spans, int threads){
+		final ArrayList<String> clusterChrs = new ArrayList<String>();
+		final ArrayList<List<Span>> clusters = new ArrayList<List<Span>>();
+		for(Entry<String, ArrayList<Span>> entry: spans.entrySet())
+			cluster(entry.getKey(), entry.getValue(), clusterChrs, clusters);
+		if(threads <= 1){
+			for(int i = 0; i < clusters.size(); i++)
+				resolveCluster(source, clusterChrs.get(i), clusters.get(i));
+		} else {
+			//workers take clusters in coordinate order, so each of them still only seeks forward
+			final AtomicInteger nextCluster = new AtomicInteger(0);
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			ArrayList<Future<Object>> workers = new ArrayList<Future<Object>>();
+			for(int t = 0; t < threads; t++){
+				workers.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						ReadDepthSource workerSource = source.forThread();
+						try {
+							for(int i = nextCluster.getAndIncrement(); i < clusters.size(); i = nextCluster.getAndIncrement())
+								resolveCluster(workerSource, clusterChrs.get(i), clusters.get(i));
+						} finally {
+							if(workerSource != source)
+								workerSource.close();
+						}
+						return null;
+					}
+				}));
+			}
+			pool.shutdown();
+			try {
+				for(Future<Object> worker: workers)
+					worker.get();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Read depth worker failed", e.getCause());
+			}
+		}
+		return clusters.size();
+	}
+
+	/*
+	 * Sorts the spans of a chromosome and groups overlapping ones into clusters.
+	 */
+	private void cluster(String chr, ArrayList<Span> chrSpans, ArrayList<String> clusterChrs, ArrayList<List<Span>> clusters){
+		ArrayList<Span> sorted = new ArrayList<Span>(chrSpans);
+		Collections.sort(sorted, BY_COORDINATE);
+		int first = 0;
+		while(first < sorted.size()){
+			//extend the cluster while the next span overlaps it
+			int last = first, clusterEnd = sorted.get(first).end;
+			while(last + 1 < sorted.size() && sorted.get(last + 1).start <= clusterEnd){
+				last++;
+				clusterEnd = Math.max(clusterEnd, sorted.get(last).end);
+			}
+			clusterChrs.add(chr);
+			clusters.add(sorted.subList(first, last + 1));
+			scannedBases += clusterEnd - sorted.get(first).start + 1;
+			first = last + 1;
+		}
+	}
+
+	/*
+	 * Splits the cluster into disjoint segments at every span boundary,
+	 * fetches all segment sums in one go and adds them up per span.
+	 */
+	private static void resolveCluster(ReadDepthSource source, String chr, List<Span> cluster){
+		int[] boundaries = new int[2 * cluster.size()];
+		int n = 0;
+		for(Span s: cluster){
+			boundaries[n++] = s.start;
+			boundaries[n++] = s.end + 1;
+		}
+		Arrays.sort(boundaries);
+		int unique = 0;
+		for(int i = 0; i < boundaries.length; i++){
+			if(unique == 0 || boundaries[i] != boundaries[unique - 1])
+				boundaries[unique++] = boundaries[i];
+		}
+		boundaries = Arrays.copyOf(boundaries, unique);
+		long[] sums = source.getDepthSums(chr, boundaries);
+		if(sums == null)
+			return;
+		long[] prefix = new long[sums.length + 1];
+		for(int i = 0; i < sums.length; i++)
+			prefix[i + 1] = prefix[i] + sums[i];
+		for(Span s: cluster){
+			s.sum = prefix[Arrays.binarySearch(boundaries, s.end + 1)] - prefix[Arrays.binarySearch(boundaries, s.start)];
+			s.resolved = true;
+		}
+	}
+}
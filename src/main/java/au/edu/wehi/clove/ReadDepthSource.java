@@ -0,0 +1,22 @@
+package au.edu.wehi.clove;
+
+/*
+ * Anything that can answer the total read depth of consecutive segments (see ReadDepthScheduler).
+ * Coordinates are 1-based and inclusive.
+ */
+interface ReadDepthSource {
+	
+	/*
+	 * Total depth of each segment [boundaries[i], boundaries[i+1]-1], with boundaries in ascending order.
+	 * Returns null if the source has no data for the chromosome.
+	 */
+	public long[] getDepthSums(String chr, int[] boundaries);
+	
+	/*
+	 * A source answering the same queries that is safe to use from another thread,
+	 * e.g. with its own BAM reader. Read-only sources can return themselves.
+	 */
+	public ReadDepthSource forThread();
+	
+	public void close();
+}
@@ -0,0 +1,166 @@
+package au.edu.wehi.clove;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/*
+ * Target regions of a run (-L), given as chr, chr:start-end (1-based, inclusive) or BED files.
+ * Every region is extended by PADDING on both sides, so that calls close to a region, which
+ * may end up in the same node or complex event, are kept as well. Overlapping regions are merged.
+ */
+class Regions {
+
+	public static final int PADDING = 1000;
+
+	private static class ContigRegions {
+		private int[] starts = new int[4], ends = new int[4];
+		private int size;
+
+		private void add(int start, int end){
+			if(size == starts.length){
+				starts = Arrays.copyOf(starts, 2 * size);
+				ends = Arrays.copyOf(ends, 2 * size);
+			}
+			starts[size] = start;
+			ends[size] = end;
+			size++;
+		}
+
+		/*
+		 * Sorts the regions by start and merges overlapping or adjacent ones.
+		 */
+		private void merge(){
+			long[] regions = new long[size];
+			for(int i = 0; i < size; i++)
+				regions[i] = (long)starts[i] << 32 | (ends[i] & 0xFFFFFFFFL);
+			Arrays.sort(regions);
+			int merged = 0;
+			for(long region: regions){
+				int start = (int)(region >> 32), end = (int)region;
+				if(merged > 0 && start <= (long)ends[merged - 1] + 1){
+					ends[merged - 1] = Math.max(ends[merged - 1], end);
+				} else {
+					starts[merged] = start;
+					ends[merged] = end;
+					merged++;
+				}
+			}
+			size = merged;
+		}
+
+		private boolean contains(int pos){
+			//last region starting at or before pos
+			int i = Arrays.binarySearch(starts, 0, size, pos);
+			if(i < 0)
+				i = -i - 2;
+			return i >= 0 && pos <= ends[i];
+		}
+	}
+
+	private Hashtable<String, ContigRegions> contigs;
+	//chromosomes in the order given
+	private ArrayList<String> chromosomes;
+
+	public Regions(){
+		this.contigs = new Hashtable<String, ContigRegions>();
+		this.chromosomes = new ArrayList<String>();
+	}
+
+	/*
+	 * Adds a region (chr or chr:start-end) or, if there is such a file, the regions of a BED file.
+	 * Has to be followed by merge() before queries.
+	 */
+	public void add(String regionOrFile) throws IOException {
+		if(new File(regionOrFile).isFile()){
+			addBed(regionOrFile);
+			return;
+		}
+		String region = regionOrFile.replace(",", "");
+		//contig names may contain colons themselves (e.g. HLA-A*01:01:01:01:1-100)
+		int colon = region.lastIndexOf(':');
+		if(colon > 0){
+			String range = region.substring(colon + 1);
+			int dash = range.indexOf('-');
+			try {
+				int start = Integer.parseInt(dash < 0? range : range.substring(0, dash));
+				int end = (dash < 0? start : Integer.parseInt(range.substring(dash + 1)));
+				if(start > end)
+					throw new IllegalArgumentException("Region "+regionOrFile+" ends before it starts");
+				add(region.substring(0, colon), start, end);
+				return;
+			} catch (NumberFormatException e){
+				//no range, the whole name is the chromosome
+			}
+		}
+		add(region, 1, Integer.MAX_VALUE);
+	}
+
+	private void addBed(String fileName) throws IOException {
+		BufferedReader bed = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while((line = bed.readLine()) != null){
+				if(line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser"))
+					continue;
+				String[] fields = line.split("\t");
+				if(fields.length < 3)
+					throw new IllegalArgumentException("Not a BED line: "+line);
+				//BED is 0-based, end exclusive
+				add(fields[0], Integer.parseInt(fields[1]) + 1, Integer.parseInt(fields[2]));
+			}
+		} finally {
+			bed.close();
+		}
+	}
+
+	private void add(String chr, int start, int end){
+		ContigRegions regions = contigs.get(chr);
+		if(regions == null){
+			regions = new ContigRegions();
+			contigs.put(chr, regions);
+			chromosomes.add(chr);
+		}
+		regions.add(Math.max(1, start - PADDING), (int)Math.min((long)end + PADDING, Integer.MAX_VALUE));
+	}
+
+	public void merge(){
+		for(ContigRegions regions: contigs.values())
+			regions.merge();
+	}
+
+	public boolean contains(GenomicCoordinate c){
+		ContigRegions regions = contigs.get(c.getChr());
+		return regions != null && regions.contains(c.getPos());
+	}
+
+	/*
+	 * Whether at least one breakpoint of the event is in the (padded) regions.
+	 */
+	public boolean overlaps(Event e){
+		return contains(e.getC1()) || contains(e.getC2());
+	}
+
+	public ArrayList<String> chromosomes(){
+		return chromosomes;
+	}
+
+	public int size(String chr){
+		return contigs.get(chr).size;
+	}
+
+	/*
+	 * Start and end of the i-th padded region of the chromosome, in coordinate order.
+	 */
+	public int start(String chr, int i){
+		return contigs.get(chr).starts[i];
+	}
+
+	public int end(String chr, int i){
+		return contigs.get(chr).ends[i];
+	}
+}
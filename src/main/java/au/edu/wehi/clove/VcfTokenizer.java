@@ -0,0 +1,155 @@
+package au.edu.wehi.clove;
+
+import java.util.Arrays;
+
+/*
+ * Splits a VCF line into its fields and INFO entries by offsets only. No intermediate
+ * String arrays are created; only the values asked for become Strings or numbers.
+ * Each thread reuses one tokenizer for all of its lines (see get()).
+ */
+class VcfTokenizer {
+
+	private static final int INFO = 7;
+
+	private static final ThreadLocal<VcfTokenizer> TOKENIZERS = new ThreadLocal<VcfTokenizer>() {
+		@Override
+		protected VcfTokenizer initialValue() {
+			return new VcfTokenizer();
+		}
+	};
+
+	private String line;
+	private int[] starts, ends;
+	private int fields;
+
+	private VcfTokenizer(){
+		this.starts = new int[16];
+		this.ends = new int[16];
+	}
+
+	/*
+	 * The tokenizer of the current thread, set to the given line.
+	 */
+	public static VcfTokenizer get(String line){
+		VcfTokenizer t = TOKENIZERS.get();
+		t.tokenize(line);
+		return t;
+	}
+
+	private void tokenize(String line){
+		this.line = line;
+		this.fields = 0;
+		int start = 0;
+		while(true){
+			if(fields == starts.length){
+				starts = Arrays.copyOf(starts, 2 * fields);
+				ends = Arrays.copyOf(ends, 2 * fields);
+			}
+			int tab = line.indexOf('\t', start);
+			starts[fields] = start;
+			ends[fields] = (tab < 0? line.length() : tab);
+			fields++;
+			if(tab < 0)
+				break;
+			start = tab + 1;
+		}
+	}
+
+	private void checkField(int i){
+		if(i >= fields)
+			throw new ArrayIndexOutOfBoundsException("VCF line has no field "+i+": "+line);
+	}
+
+	/*
+	 * Checks that the line reaches the INFO column.
+	 */
+	public void checkInfo(){
+		checkField(INFO);
+	}
+
+	public String field(int i){
+		checkField(i);
+		return line.substring(starts[i], ends[i]);
+	}
+
+	public int intField(int i){
+		checkField(i);
+		return parseInt(starts[i], ends[i]);
+	}
+
+	/*
+	 * Offset of the value of the INFO entry key, -1 if there is no such entry.
+	 * Flags without a value are not found.
+	 */
+	public int infoOffset(String key){
+		checkField(INFO);
+		int end = ends[INFO];
+		for(int entry = starts[INFO]; entry < end; ){
+			int valueStart = entry + key.length() + 1;
+			if(valueStart <= end && line.startsWith(key, entry) && line.charAt(valueStart - 1) == '=')
+				return valueStart;
+			int semicolon = line.indexOf(';', entry);
+			if(semicolon < 0 || semicolon >= end)
+				break;
+			entry = semicolon + 1;
+		}
+		return -1;
+	}
+
+	private int infoValueEnd(int valueStart){
+		int semicolon = line.indexOf(';', valueStart);
+		return (semicolon < 0 || semicolon > ends[INFO]? ends[INFO] : semicolon);
+	}
+
+	/*
+	 * Value of the INFO entry key, or null.
+	 */
+	public String info(String key){
+		int valueStart = infoOffset(key);
+		if(valueStart < 0)
+			return null;
+		return line.substring(valueStart, infoValueEnd(valueStart));
+	}
+
+	/*
+	 * Integer value of the INFO entry key.
+	 */
+	public int infoInt(String key){
+		int valueStart = infoOffset(key);
+		if(valueStart < 0)
+			throw new NumberFormatException("No INFO entry "+key+": "+line);
+		return parseInt(valueStart, infoValueEnd(valueStart));
+	}
+
+	/*
+	 * Integer value of the INFO entry key, or missing if there is none.
+	 */
+	public int infoInt(String key, int missing){
+		int valueStart = infoOffset(key);
+		if(valueStart < 0)
+			return missing;
+		return parseInt(valueStart, infoValueEnd(valueStart));
+	}
+
+	private int parseInt(int from, int to){
+		int i = from;
+		boolean negative = false;
+		if(i < to && (line.charAt(i) == '-' || line.charAt(i) == '+')){
+			negative = line.charAt(i) == '-';
+			i++;
+		}
+		if(i == to)
+			throw new NumberFormatException("For input string: \""+line.substring(from, to)+"\"");
+		long value = 0;
+		for(; i < to; i++){
+			char c = line.charAt(i);
+			if(c < '0' || c > '9' || value > Integer.MAX_VALUE)
+				throw new NumberFormatException("For input string: \""+line.substring(from, to)+"\"");
+			value = 10 * value + (c - '0');
+		}
+		value = (negative? -value : value);
+		if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new NumberFormatException("For input string: \""+line.substring(from, to)+"\"");
+		return (int)value;
+	}
+}